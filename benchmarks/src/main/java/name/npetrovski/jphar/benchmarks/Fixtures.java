@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar.benchmarks;
+
+import name.npetrovski.jphar.Compression;
+import name.npetrovski.jphar.Phar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Benchmark fixtures.
+ *
+ * <p>Archives are named either after a file in the test resources of the library (for example
+ * "phpunit-5.2.1.phar") or "synthetic-N" for a generated archive of N PHP files. Generated trees and archives are
+ * kept in {@code java.io.tmpdir/jphar-benchmarks} and reused by later forks and runs.</p>
+ *
+ */
+final class Fixtures {
+
+    static final String SYNTHETIC = "synthetic-";
+
+    private static final File RESOURCES = new File(System.getProperty("jphar.resources", "../src/test/resources"));
+
+    private static final File WORK = new File(System.getProperty("java.io.tmpdir"), "jphar-benchmarks");
+
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Resolve an archive by name, generating synthetic archives with the given compression on first use
+     *
+     */
+    static synchronized File archive(String name, Compression.Type compression) throws IOException {
+        if (!name.startsWith(SYNTHETIC)) {
+            File file = new File(RESOURCES, name);
+            if (!file.isFile()) {
+                throw new IOException(file + " not found, set -Djphar.resources to the test resources directory");
+            }
+            return file;
+        }
+
+        int entries = Integer.parseInt(name.substring(SYNTHETIC.length()));
+        File file = new File(WORK, name + "-" + compression.getType().toLowerCase() + ".phar");
+        if (!file.isFile()) {
+            File tmp = new File(WORK, file.getName() + ".tmp");
+            Files.deleteIfExists(tmp.toPath());
+
+            Phar phar = new Phar(tmp);
+            phar.add(tree(entries), compression);
+            phar.write(Runtime.getRuntime().availableProcessors());
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return file;
+    }
+
+    /**
+     * Directory of generated PHP sources, laid out as vendor/pkgNNN/ClassNNNNNN.php
+     *
+     */
+    static synchronized File tree(int entries) throws IOException {
+        File root = new File(WORK, "tree-" + entries + File.separator + "vendor");
+        File done = new File(WORK, "tree-" + entries + ".done");
+        if (done.isFile()) {
+            return root;
+        }
+
+        Random random = new Random(entries);
+        for (int i = 0; i < entries; i++) {
+            Path dir = new File(root, String.format("pkg%03d", i / FILES_PER_DIRECTORY)).toPath();
+            Files.createDirectories(dir);
+            try (Writer writer = Files.newBufferedWriter(dir.resolve(String.format("Class%06d.php", i)),
+                    StandardCharsets.UTF_8)) {
+                writer.write(source(i, random));
+            }
+        }
+        Files.createFile(done.toPath());
+
+        return root;
+    }
+
+    private static String source(int n, Random random) {
+        StringBuilder sb = new StringBuilder("<?php\n\nnamespace Vendor\\Pkg;\n\nclass Class").append(n).append("\n{\n");
+        int methods = 2 + random.nextInt(20);
+        for (int m = 0; m < methods; m++) {
+            sb.append("    public function method").append(m).append("($value)\n    {\n")
+                    .append("        return $value * ").append(random.nextInt(1000))
+                    .append(" + strlen('").append(Long.toHexString(random.nextLong())).append("');\n    }\n\n");
+        }
+        return sb.append("}\n").toString();
+    }
+
+    /**
+     * Parse open options from a benchmark parameter, where DEFAULT means none
+     *
+     */
+    static Phar.Option[] options(String mode) {
+        if ("DEFAULT".equals(mode)) {
+            return new Phar.Option[0];
+        }
+        return new Phar.Option[]{Phar.Option.valueOf(mode)};
+    }
+}
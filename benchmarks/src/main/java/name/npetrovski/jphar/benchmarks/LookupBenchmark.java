@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar.benchmarks;
+
+import name.npetrovski.jphar.Compression;
+import name.npetrovski.jphar.Entry;
+import name.npetrovski.jphar.Phar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link Phar#findEntry(String)} for names present in the archive and for misses
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LookupBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    @Param({"synthetic-1000", "synthetic-10000", "synthetic-100000", "phpunit-5.2.1.phar", "codecept.phar"})
+    public String archive;
+
+    private Phar phar;
+
+    private final String[] hits = new String[SAMPLES];
+
+    private final String[] misses = new String[SAMPLES];
+
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        phar = new Phar(Fixtures.archive(archive, Compression.Type.ZLIB), Phar.Option.LAZY);
+
+        String[] names = phar.list();
+        Random random = new Random(SAMPLES);
+        for (int i = 0; i < SAMPLES; i++) {
+            hits[i] = names[random.nextInt(names.length)];
+            misses[i] = hits[i] + ".missing";
+        }
+    }
+
+    @Benchmark
+    public Entry hit() {
+        return phar.findEntry(hits[next++ & (SAMPLES - 1)]);
+    }
+
+    @Benchmark
+    public Entry miss() {
+        return phar.findEntry(misses[next++ & (SAMPLES - 1)]);
+    }
+}
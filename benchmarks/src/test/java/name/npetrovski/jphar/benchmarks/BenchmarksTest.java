@@ -0,0 +1,98 @@
+package name.npetrovski.jphar.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import name.npetrovski.jphar.Compression;
+import name.npetrovski.jphar.DataEntry;
+import name.npetrovski.jphar.Phar;
+
+public class BenchmarksTest extends TestCase {
+
+    /**
+     * Returns the test suite.
+     *
+     * @return The test suite
+     */
+    public static Test suite() {
+        return new TestSuite(BenchmarksTest.class);
+    }
+
+    public void testFixtures() throws IOException {
+        File bundled = Fixtures.archive("codecept.phar", Compression.Type.ZLIB);
+        assertEquals(965, new Phar(bundled).getEntries().size());
+
+        try {
+            Fixtures.archive("missing.phar", Compression.Type.ZLIB);
+            fail("Bundled archives must exist");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        File synthetic = Fixtures.archive(Fixtures.SYNTHETIC + 1000, Compression.Type.ZLIB);
+        int files = 0;
+        for (DataEntry entry : new Phar(synthetic).getEntries()) {
+            if (!entry.isDirectory()) {
+                assertTrue(entry.getName().matches("vendor/pkg\\d{3}/Class\\d{6}\\.php"));
+                assertEquals(Compression.Type.ZLIB, entry.getEntryManifest().getCompression().getType());
+                files++;
+            }
+        }
+        assertEquals(1000, files);
+
+        // Generated once and reused
+        long modified = synthetic.lastModified();
+        assertEquals(synthetic, Fixtures.archive(Fixtures.SYNTHETIC + 1000, Compression.Type.ZLIB));
+        assertEquals(modified, synthetic.lastModified());
+
+        assertEquals(0, Fixtures.options("DEFAULT").length);
+        assertEquals(Phar.Option.LAZY, Fixtures.options("LAZY")[0]);
+    }
+
+    public void testBenchmarks() throws IOException {
+        LookupBenchmark lookup = new LookupBenchmark();
+        lookup.archive = "phpunit-5.2.1.phar";
+        lookup.setUp();
+        assertNotNull(lookup.hit());
+        assertNull(lookup.miss());
+
+        OpenBenchmark open = new OpenBenchmark();
+        open.archive = "codecept.phar";
+        open.mode = "LAZY";
+        open.setUp();
+        assertEquals(965, open.open().getEntries().size());
+
+        ReadBenchmark read = new ReadBenchmark();
+        read.archive = Fixtures.SYNTHETIC + 1000;
+        read.compression = "BZIP";
+        read.mode = "MEMORY_MAPPED";
+        read.setUp();
+        long total = 0;
+        for (File file : Fixtures.tree(1000).listFiles()) {
+            for (File php : file.listFiles()) {
+                total += php.length();
+            }
+        }
+        assertEquals(total, read.readAll());
+
+        WriteBenchmark write = new WriteBenchmark();
+        write.entries = 1000;
+        write.compression = "ZLIB";
+        write.parallelism = 4;
+        write.setUp();
+        try {
+            write.prepare();
+            assertTrue(write.write() > 0);
+        } finally {
+            write.tearDown();
+        }
+
+        SignatureBenchmark signature = new SignatureBenchmark();
+        signature.archive = "phpunit-5.2.1.phar";
+        signature.algorithm = "SHA1";
+        signature.setUp();
+        assertEquals(20, signature.calcSignature().length);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression codec for one of the {@link Compression.Type}s
+ *
+ * <p>Implementations are picked up through {@link java.util.ServiceLoader} or registered with
+ * {@link Codecs#register(Codec)}, replacing the built-in codec of their type. They must be thread-safe.</p>
+ *
+ */
+public interface Codec {
+
+    /**
+     * Level asking for the codec's default
+     */
+    int DEFAULT_LEVEL = -1;
+
+    /**
+     * Strategy asking for the codec's default
+     */
+    int DEFAULT_STRATEGY = 0;
+
+    Compression.Type getType();
+
+    InputStream newInputStream(InputStream is) throws IOException;
+
+    /**
+     * Stream compressing into the given stream; closing it finishes the compressed data and closes the target
+     *
+     * @param level codec specific level, or {@link #DEFAULT_LEVEL}
+     * @param strategy codec specific strategy, such as {@link java.util.zip.Deflater#FILTERED} for ZLIB
+     */
+    OutputStream newOutputStream(OutputStream os, int level, int strategy) throws IOException;
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput counters of a codec
+ *
+ * <p>Times are spent inside the codec streams, including the time to take the input and pass on the output.</p>
+ *
+ */
+public final class CodecStatistics {
+
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    private final AtomicLong compressionInput = new AtomicLong();
+
+    private final AtomicLong compressionNanos = new AtomicLong();
+
+    private final AtomicLong decompressedBytes = new AtomicLong();
+
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    CodecStatistics() {
+    }
+
+    void compressed(final long input, final long output, final long nanos) {
+        compressionInput.addAndGet(input);
+        compressedBytes.addAndGet(output);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    void decompressed(final long output, final long nanos) {
+        decompressedBytes.addAndGet(output);
+        decompressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Uncompressed bytes taken by compression
+     *
+     */
+    public long getCompressionInput() {
+        return compressionInput.get();
+    }
+
+    /**
+     * Compressed bytes produced by compression
+     *
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    public long getCompressionNanos() {
+        return compressionNanos.get();
+    }
+
+    /**
+     * Uncompressed bytes produced by decompression
+     *
+     */
+    public long getDecompressedBytes() {
+        return decompressedBytes.get();
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos.get();
+    }
+
+    /**
+     * Compressed size relative to the input, 1.0 when nothing was compressed yet
+     *
+     */
+    public double getCompressionRatio() {
+        long input = compressionInput.get();
+        return input == 0 ? 1.0 : (double) compressedBytes.get() / input;
+    }
+
+    /**
+     * Uncompressed bytes compressed per second
+     *
+     */
+    public double getCompressionThroughput() {
+        return throughput(compressionInput.get(), compressionNanos.get());
+    }
+
+    /**
+     * Uncompressed bytes decompressed per second
+     *
+     */
+    public double getDecompressionThroughput() {
+        return throughput(decompressedBytes.get(), decompressionNanos.get());
+    }
+
+    public void reset() {
+        compressedBytes.set(0);
+        compressionInput.set(0);
+        compressionNanos.set(0);
+        decompressedBytes.set(0);
+        decompressionNanos.set(0);
+    }
+
+    private static double throughput(final long bytes, final long nanos) {
+        return nanos == 0 ? 0.0 : (double) bytes * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "CodecStatistics(compressionInput=" + getCompressionInput()
+                + ", compressedBytes=" + getCompressedBytes()
+                + ", compressionNanos=" + getCompressionNanos()
+                + ", decompressedBytes=" + getDecompressedBytes()
+                + ", decompressionNanos=" + getDecompressionNanos() + ")";
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the codecs used for the compression types
+ *
+ * <p>With {@link #setMetered(boolean) metering} on, streams handed out here feed the {@link CodecStatistics} of their
+ * type. Metering times every read and write, so it is off by default and the codec streams are used as they
+ * are.</p>
+ *
+ */
+public final class Codecs {
+
+    private static final Map<Compression.Type, CodecStatistics> STATISTICS =
+            new EnumMap<>(Compression.Type.class);
+
+    private static volatile Map<Compression.Type, Codec> codecs = new EnumMap<>(Compression.Type.class);
+
+    private static volatile boolean metered = false;
+
+    static {
+        for (Compression.Type type : Compression.Type.values()) {
+            STATISTICS.put(type, new CodecStatistics());
+        }
+
+        register(new StoredCodec());
+        register(new ZlibCodec());
+        register(new BZip2Codec());
+        for (Codec codec : ServiceLoader.load(Codec.class)) {
+            register(codec);
+        }
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Use the codec for its compression type
+     *
+     */
+    public static synchronized void register(final Codec codec) {
+        Map<Compression.Type, Codec> registered = new EnumMap<>(codecs);
+        registered.put(codec.getType(), codec);
+        codecs = registered;
+    }
+
+    public static Codec get(final Compression.Type type) throws IOException {
+        Codec codec = codecs.get(type);
+        if (null == codec) {
+            throw new IOException("Unsupported compression type.");
+        }
+
+        return codec;
+    }
+
+    public static CodecStatistics getStatistics(final Compression.Type type) {
+        return STATISTICS.get(type);
+    }
+
+    public static boolean isMetered() {
+        return metered;
+    }
+
+    /**
+     * Collect the statistics of the streams opened from now on
+     *
+     */
+    public static void setMetered(final boolean metered) {
+        Codecs.metered = metered;
+    }
+
+    static InputStream newInputStream(final Compression.Type type, final InputStream is) throws IOException {
+        if (!metered) {
+            return get(type).newInputStream(is);
+        }
+
+        return new MeteredInputStream(get(type).newInputStream(is), STATISTICS.get(type));
+    }
+
+    static OutputStream newOutputStream(final Compression.Type type, final OutputStream os, final int level,
+            final int strategy) throws IOException {
+        if (!metered) {
+            return get(type).newOutputStream(os, level, strategy);
+        }
+
+        CountingStream counter = new CountingStream(os);
+        return new MeteredOutputStream(get(type).newOutputStream(counter, level, strategy), counter,
+                STATISTICS.get(type));
+    }
+
+    private static final class StoredCodec implements Codec {
+
+        @Override
+        public Compression.Type getType() {
+            return Compression.Type.NONE;
+        }
+
+        @Override
+        public InputStream newInputStream(final InputStream is) {
+            return is;
+        }
+
+        @Override
+        public OutputStream newOutputStream(final OutputStream os, final int level, final int strategy) {
+            return os;
+        }
+    }
+
+    private static final class ZlibCodec implements Codec {
+
+        @Override
+        public Compression.Type getType() {
+            return Compression.Type.ZLIB;
+        }
+
+        @Override
+        public InputStream newInputStream(final InputStream is) {
+            return ZlibPool.newInputStream(is);
+        }
+
+        @Override
+        public OutputStream newOutputStream(final OutputStream os, final int level, final int strategy) {
+            return ZlibPool.newOutputStream(os, level, strategy);
+        }
+    }
+
+    /**
+     * BZIP2 codec, taking the level as the block size in 100k units
+     *
+     */
+    private static final class BZip2Codec implements Codec {
+
+        @Override
+        public Compression.Type getType() {
+            return Compression.Type.BZIP;
+        }
+
+        @Override
+        public InputStream newInputStream(final InputStream is) throws IOException {
+            return new BZip2CompressorInputStream(is, true);
+        }
+
+        @Override
+        public OutputStream newOutputStream(final OutputStream os, final int level, final int strategy)
+                throws IOException {
+            int blockSize = level < BZip2CompressorOutputStream.MIN_BLOCKSIZE
+                    ? BZip2CompressorOutputStream.MAX_BLOCKSIZE
+                    : Math.min(level, BZip2CompressorOutputStream.MAX_BLOCKSIZE);
+            return new BZip2CompressorOutputStream(os, blockSize);
+        }
+    }
+
+    /**
+     * Counts the compressed bytes
+     *
+     */
+    private static final class CountingStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static final class MeteredOutputStream extends FilterOutputStream {
+
+        private final CountingStream counter;
+
+        private final CodecStatistics statistics;
+
+        private long input = 0;
+
+        private long nanos = 0;
+
+        private boolean closed = false;
+
+        MeteredOutputStream(final OutputStream out, final CountingStream counter, final CodecStatistics statistics) {
+            super(out);
+            this.counter = counter;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            input++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            input += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            long start = System.nanoTime();
+            try {
+                out.close();
+            } finally {
+                nanos += System.nanoTime() - start;
+                statistics.compressed(input, counter.count, nanos);
+            }
+        }
+    }
+
+    /**
+     * Collects the decompression counters, handing them to the statistics at the end of the data or on close
+     *
+     */
+    private static final class MeteredInputStream extends FilterInputStream {
+
+        private final CodecStatistics statistics;
+
+        private long output = 0;
+
+        private long nanos = 0;
+
+        MeteredInputStream(final InputStream in, final CodecStatistics statistics) {
+            super(in);
+            this.statistics = statistics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = in.read();
+            nanos += System.nanoTime() - start;
+            if (b < 0) {
+                publish();
+            } else {
+                output++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = in.read(b, off, len);
+            nanos += System.nanoTime() - start;
+            if (n < 0) {
+                publish();
+            } else {
+                output += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            publish();
+            in.close();
+        }
+
+        private void publish() {
+            if (output > 0 || nanos > 0) {
+                statistics.decompressed(output, nanos);
+                output = 0;
+                nanos = 0;
+            }
+        }
+    }
+}
@@ -40,6 +40,16 @@ public class Compression implements Readable, Writable {
     @XmlValue
     private Compression.Type type = Compression.Type.NONE;
 
+    /**
+     * Codec level used when the entry is compressed, instead of the one of the archive
+     */
+    private transient Integer level;
+
+    /**
+     * Codec strategy used when the entry is compressed, instead of the one of the archive
+     */
+    private transient Integer strategy;
+
     public Compression() {
 
     }
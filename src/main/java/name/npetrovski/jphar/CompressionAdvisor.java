@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides whether the content of an entry is worth compressing
+ *
+ * <p>Content is taken as incompressible when its extension or its leading magic bytes show an already compressed
+ * format, or when a sample of it does not compress below the threshold ratio.</p>
+ *
+ */
+final class CompressionAdvisor {
+
+    static final int SAMPLE_SIZE = 16 * 1024;
+
+    private static final Set<String> EXTENSIONS = new HashSet<>(Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "webp", "ico",
+            "zip", "jar", "war", "phar", "gz", "tgz", "bz2", "xz", "7z", "rar",
+            "woff", "woff2", "mp3", "mp4", "ogg", "pdf"));
+
+    private static final byte[][] MAGIC = {
+        {(byte) 0x89, 'P', 'N', 'G'},
+        {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},
+        {'G', 'I', 'F', '8'},
+        {'P', 'K', 0x03, 0x04},
+        {0x1F, (byte) 0x8B},
+        {'B', 'Z', 'h'},
+        {(byte) 0xFD, '7', 'z', 'X', 'Z', 0x00},
+        {'7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C},
+        {'w', 'O', 'F', '2'},
+    };
+
+    private CompressionAdvisor() {
+    }
+
+    /**
+     * Whether the entry holds an already compressed format, by its name or the leading bytes of its content
+     *
+     */
+    static boolean isCompressed(final String name, final byte[] sample, final int length) {
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && dot > name.lastIndexOf('/')
+                && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return true;
+        }
+
+        for (byte[] magic : MAGIC) {
+            if (startsWith(sample, length, magic)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether the sample compresses with the codec to at most the given ratio of its size
+     *
+     */
+    static boolean isCompressible(final Codec codec, final byte[] sample, final int length, final int level,
+            final int strategy, final double threshold) throws IOException {
+        if (length == 0) {
+            return false;
+        }
+
+        CountingSink sink = new CountingSink();
+        try (OutputStream compressor = codec.newOutputStream(sink, level, strategy)) {
+            compressor.write(sample, 0, length);
+        }
+
+        return sink.count <= threshold * length;
+    }
+
+    private static boolean startsWith(final byte[] sample, final int length, final byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (sample[i] != magic[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static final class CountingSink extends OutputStream {
+
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of decompressed entry contents.
+ *
+ * <p>Contents are keyed by the archive they were read from and the offset of their payload in it; rewriting the
+ * archive starts over with new keys, so stale contents are never served and age out instead. The least recently
+ * used contents are evicted once the cache holds more than {@link #getMaxBytes()} bytes. Contents can be kept in
+ * direct buffers outside of the heap.</p>
+ *
+ * <p>Set the cache on an archive with {@link Phar#setContentCache(ContentCache)}, or on a {@link PharCache} for the
+ * archives it parses. A cache can be shared between archives.</p>
+ *
+ */
+public class ContentCache {
+
+    private final Map<Key, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final boolean direct;
+
+    private long maxBytes;
+
+    private long bytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    private static final class Key {
+
+        private final Object archive;
+
+        private final long offset;
+
+        Key(final Object archive, final long offset) {
+            this.archive = archive;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return archive == other.archive && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(archive) + (int) (offset ^ (offset >>> 32));
+        }
+    }
+
+    public ContentCache(final long maxBytes) {
+        this(maxBytes, false);
+    }
+
+    /**
+     * @param direct whether to keep the contents in direct buffers outside of the heap
+     */
+    public ContentCache(final long maxBytes, final boolean direct) {
+        this.maxBytes = maxBytes;
+        this.direct = direct;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Bytes of the cached contents
+     *
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Drop all cached contents, keeping the statistics
+     *
+     */
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Get the content of an entry stored in an archive, decompressing it only when it is not cached
+     *
+     */
+    InputStream getInputStream(final Object archive, final DataEntry entry) throws IOException {
+        Key key = new Key(archive, entry.getOffset());
+
+        long limit;
+        synchronized (this) {
+            ByteBuffer content = cache.get(key);
+            if (null != content) {
+                hits++;
+                return new ByteBufferInputStream(content.duplicate());
+            }
+            misses++;
+            limit = maxBytes;
+        }
+
+        // Decompress outside of the lock, so a large entry does not hold up the others
+        InputStream source = entry.openInputStream();
+        long length = entry.getLength();
+        if (null == source || length > limit || length > Integer.MAX_VALUE) {
+            // Content that could never be cached is streamed as it is
+            return source;
+        }
+
+        ByteBuffer content = direct ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+        try {
+            byte[] buffer = new byte[8192];
+            while (content.hasRemaining()) {
+                int n = source.read(buffer, 0, Math.min(buffer.length, content.remaining()));
+                if (n < 0) {
+                    throw new EOFException("Entry " + entry.getName() + " is shorter than its manifest");
+                }
+                content.put(buffer, 0, n);
+            }
+            if (source.read() >= 0) {
+                throw new IOException("Entry " + entry.getName() + " is longer than its manifest");
+            }
+        } finally {
+            source.close();
+        }
+        content.flip();
+        content = content.asReadOnlyBuffer();
+
+        synchronized (this) {
+            if (length <= maxBytes) {
+                ByteBuffer previous = cache.put(key, content);
+                bytes += length - (null != previous ? previous.capacity() : 0);
+                evict();
+            }
+        }
+
+        return new ByteBufferInputStream(content.duplicate());
+    }
+
+    private void evict() {
+        Iterator<ByteBuffer> eldest = cache.values().iterator();
+        while (bytes > Math.max(maxBytes, 0) && eldest.hasNext()) {
+            bytes -= eldest.next().capacity();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ContentCache(maxBytes=" + maxBytes + ", bytes=" + bytes + ", size=" + cache.size()
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ")";
+    }
+}
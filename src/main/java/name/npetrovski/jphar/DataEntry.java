@@ -23,26 +23,56 @@
  */
 package name.npetrovski.jphar;
 
+import lombok.AccessLevel;
 import lombok.Data;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import lombok.Getter;
+import lombok.Setter;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.*;
 
 @Data
 @XmlAccessorType(XmlAccessType.FIELD)
 public class DataEntry implements Entry, Readable, Writable {
 
+    private static final Logger LOGGER = Logger.getLogger(DataEntry.class.getName());
+
+    private static final int BUFFER_SIZE = 8192;
+
     private Long offset;
 
     private File source;
 
     private EntryManifest entryManifest = new EntryManifest();
 
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient Compression.Type payloadCompression;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient long payloadSize;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient SpillOutputStream data;
+
+    @Setter(AccessLevel.NONE)
+    private transient Signature.Algorithm digestAlgorithm;
+
+    @Setter(AccessLevel.NONE)
+    private transient byte[] digest;
+
     public DataEntry() {
         this(new EntryManifest());
     }
@@ -58,13 +88,15 @@ public class DataEntry implements Entry, Readable, Writable {
     /**
      * Create entry from file
      *
+     * <p>The file is not read here; its CRC32 and size are taken while it is compressed on write.</p>
+     *
      */
     public static DataEntry createFromFile(File file, Compression.Type compression)
             throws IOException {
 
         EntryManifest em = new EntryManifest();
         em.setCompression(new Compression(compression));
-        em.setTimestamp((int) file.lastModified() / 1000);
+        em.setTimestamp((int) (file.lastModified() / 1000));
         em.getPath().setName(file.toPath().toString().replace("\\", "/"));
 
         DataEntry entry = new DataEntry(em);
@@ -73,16 +105,97 @@ public class DataEntry implements Entry, Readable, Writable {
         if (file.isDirectory()) {
             em.getCompression().setType(Compression.Type.NONE);
         } else {
-            byte[] data = Files.readAllBytes(file.toPath());
-            CRC32 crc = new CRC32();
-            crc.update(data);
+            em.setUncompressedLength(file.length());
+        }
+
+        return entry;
+
+    }
+
+    /**
+     * Create entry from a file whose attributes are already known
+     *
+     */
+    static DataEntry createFromFile(File file, BasicFileAttributes attrs, String name, Compression.Type compression) {
+
+        EntryManifest em = new EntryManifest();
+        em.setCompression(new Compression(compression));
+        em.setTimestamp((int) attrs.lastModifiedTime().to(TimeUnit.SECONDS));
+        em.setUncompressedLength(attrs.size());
+        em.getPath().setName(name);
+
+        DataEntry entry = new DataEntry(em);
+        entry.setSource(file);
+
+        return entry;
+    }
+
+    /**
+     * Create entry from stream
+     *
+     * <p>The stream is read to its end and compressed right away, so it can be used for generated content or
+     * entries of other archives. Compressed payloads beyond 64 KB are kept in a temporary file until the archive is
+     * written, so memory use does not grow with the content. The stream is not closed.</p>
+     *
+     */
+    public static DataEntry createFromStream(String name, InputStream is, Compression.Type compression)
+            throws IOException {
+        return createFromStream(name, is, compression, Codec.DEFAULT_LEVEL, Codec.DEFAULT_STRATEGY,
+                (int) (System.currentTimeMillis() / 1000));
+    }
+
+    /**
+     * Create entry from stream, compressing with the given codec settings
+     *
+     */
+    static DataEntry createFromStream(String name, InputStream is, Compression.Type compression, int level,
+            int strategy, int timestamp) throws IOException {
+
+        EntryManifest em = new EntryManifest();
+        em.setCompression(new Compression(compression));
+        em.setTimestamp(timestamp);
+        em.getPath().setName(name);
+
+        DataEntry entry = new DataEntry(em);
 
-            em.setCRC32((int) crc.getValue());
-            em.setUncompressedSize(data.length);
+        CRC32 crc = new CRC32();
+        long size = 0;
+        SpillOutputStream payload = new SpillOutputStream();
+        try (OutputStream compressor = entry.getCompressorOutputStream(payload, compression, level, strategy)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+                compressor.write(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                size += n;
+            }
+        } catch (IOException | RuntimeException ex) {
+            try {
+                payload.release();
+            } catch (IOException e) {
+                ex.addSuppressed(e);
+            }
+            throw ex;
         }
 
+        em.setCRC32((int) crc.getValue());
+        em.setUncompressedLength(size);
+        em.setCompressedLength(payload.getSize());
+
+        entry.data = payload;
+        entry.payloadCompression = compression;
+        entry.payloadSize = payload.getSize();
+
         return entry;
+    }
 
+    /**
+     * Create entry from channel
+     *
+     * @see #createFromStream(String, InputStream, Compression.Type)
+     */
+    public static DataEntry createFromChannel(String name, ReadableByteChannel channel, Compression.Type compression)
+            throws IOException {
+        return createFromStream(name, Channels.newInputStream(channel), compression);
     }
 
     @Override
@@ -100,6 +213,14 @@ public class DataEntry implements Entry, Readable, Writable {
         return entryManifest.getUncompressedSize();
     }
 
+    /**
+     * Uncompressed size, taking the manifest field as unsigned
+     *
+     */
+    public long getLength() {
+        return entryManifest.getUncompressedLength();
+    }
+
     @Override
     public Integer getLastModified() {
         return entryManifest.getTimestamp();
@@ -108,22 +229,40 @@ public class DataEntry implements Entry, Readable, Writable {
     @Override
     public InputStream getInputStream() throws IOException {
 
-        if (null != source && source.exists() && source.isFile()) {
+        if (null != offset && source instanceof Phar && !isDirectory()) {
+            Phar archive = (Phar) source;
+            ContentCache cache = archive.getContentCache();
+            if (null != cache) {
+                return cache.getInputStream(archive.getGeneration(), this);
+            }
+        }
 
-            if (null != offset) {
-                int size = entryManifest.getCompressedSize();
-                if (!isDirectory() && size > 0) {
-                    try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+        return openInputStream();
+    }
+
+    /**
+     * Open the content, decompressing it from the stored payload
+     *
+     */
+    InputStream openInputStream() throws IOException {
 
-                        byte[] data = new byte[size];
+        if (null != data) {
+            return getCompressorInputStream(data.openInputStream(), getPayloadCompression());
+        }
 
-                        raf.seek(offset);
-                        raf.read(data, 0, size);
-                        raf.close();
+        if (null != source && source.exists() && source.isFile()) {
 
-                        return getCompressorInputStream(new ByteArrayInputStream(data),
-                                entryManifest.getCompression().getType());
+            if (null != offset) {
+                long size = getPayloadSize();
+                if (!isDirectory() && size > 0) {
+                    ByteBuffer payload = source instanceof Phar ? ((Phar) source).getPayload(offset, size) : null;
+                    if (null != payload) {
+                        return getCompressorInputStream(new ByteBufferInputStream(payload), getPayloadCompression());
                     }
+
+                    // Decompressed in chunks straight from the file, whatever the payload size
+                    return getCompressorInputStream(RegionInputStream.open(source.toPath(), offset, size),
+                            getPayloadCompression());
                 }
             } else {
                 return new FileInputStream(source);
@@ -133,6 +272,14 @@ public class DataEntry implements Entry, Readable, Writable {
         return null;
     }
 
+    /**
+     * Decompress the stored payload read from the given stream
+     *
+     */
+    InputStream getInputStream(final InputStream payload) throws IOException {
+        return getCompressorInputStream(payload, getPayloadCompression());
+    }
+
     @Override
     public OutputStream getOutputStream() throws IOException {
 
@@ -141,7 +288,7 @@ public class DataEntry implements Entry, Readable, Writable {
 
         if (null != is) {
             try (OutputStream compressor = getCompressorOutputStream(result,
-                    entryManifest.getCompression().getType())) {
+                    entryManifest.getCompression().getType(), Codec.DEFAULT_LEVEL, Codec.DEFAULT_STRATEGY)) {
 
                 byte[] buffer = new byte[1024];
                 for (int n = 0; n >= 0; n = is.read(buffer)) {
@@ -159,44 +306,285 @@ public class DataEntry implements Entry, Readable, Writable {
     }
 
     private InputStream getCompressorInputStream(final InputStream is, Compression.Type compression) throws IOException {
-        switch (compression) {
-            case ZLIB:
-                return new InflaterInputStream(is, new Inflater(true));
-            case BZIP:
-                return new BZip2CompressorInputStream(is, true);
-            case NONE:
-                return is;
-            default:
-                throw new IOException("Unsupported compression type.");
-        }
-
+        return Codecs.newInputStream(compression, is);
     }
 
-    private OutputStream getCompressorOutputStream(final OutputStream os, Compression.Type compression) throws IOException {
-        switch (compression) {
-            case ZLIB:
-                return new DeflaterOutputStream(os, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
-            case BZIP:
-                return new BZip2CompressorOutputStream(os);
-            case NONE:
-                return os;
-            default:
-                throw new IOException("Unsupported compression type.");
-        }
+    /**
+     * Compressor of the entry, with its own level and strategy or else the given ones
+     *
+     */
+    private OutputStream getCompressorOutputStream(final OutputStream os, Compression.Type compression, int level,
+            int strategy) throws IOException {
+        Compression c = entryManifest.getCompression();
+        return Codecs.newOutputStream(compression, os,
+                null != c.getLevel() ? c.getLevel() : level,
+                null != c.getStrategy() ? c.getStrategy() : strategy);
     }
 
     public void read(PharInputStream is) throws IOException {
         offset = is.getPosition();
-        is.skip(entryManifest.getCompressedSize());
+        payloadCompression = entryManifest.getCompression().getType();
+        payloadSize = entryManifest.getCompressedLength();
+        is.skip(payloadSize);
+    }
+
+    /**
+     * Give up the payload buffered for writing, deleting its spilled file unless a copy of the entry still holds it
+     *
+     */
+    void release() {
+        if (null != data) {
+            try {
+                data.release();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, ex.toString(), ex);
+            }
+            data = null;
+        }
+    }
+
+    /**
+     * Point the entry to its payload stored in an archive
+     *
+     */
+    void locate(File archive, long position) {
+        release();
+        source = archive;
+        offset = position;
+        payloadCompression = entryManifest.getCompression().getType();
+        payloadSize = entryManifest.getCompressedLength();
+    }
+
+    /**
+     * Copy of the entry with a manifest of its own, referring to the same payload
+     *
+     */
+    DataEntry copy() {
+        EntryManifest em = new EntryManifest();
+        em.getPath().setName(getName());
+        em.setUncompressedSize(entryManifest.getUncompressedSize());
+        em.setTimestamp(entryManifest.getTimestamp());
+        em.setCompressedSize(entryManifest.getCompressedSize());
+        em.setCRC32(entryManifest.getCRC32());
+        em.setMetadata(entryManifest.getMetadata().copy());
+
+        Compression compression = new Compression(entryManifest.getCompression().getType());
+        compression.setLevel(entryManifest.getCompression().getLevel());
+        compression.setStrategy(entryManifest.getCompression().getStrategy());
+        em.setCompression(compression);
+
+        DataEntry entry = new DataEntry(em);
+        entry.offset = offset;
+        entry.source = source;
+        entry.payloadCompression = payloadCompression;
+        entry.payloadSize = payloadSize;
+        entry.data = null != data ? data.retain() : null;
+        entry.digestAlgorithm = digestAlgorithm;
+        entry.digest = digest;
+
+        return entry;
+    }
+
+    /**
+     * Compression of the stored payload, which differs from the manifest once a new compression is selected
+     *
+     */
+    Compression.Type getPayloadCompression() {
+        return null != payloadCompression ? payloadCompression : entryManifest.getCompression().getType();
+    }
+
+    /**
+     * Size of the stored payload, which differs from the manifest while the entry is being recompressed
+     *
+     */
+    long getPayloadSize() {
+        return null != payloadCompression ? payloadSize : entryManifest.getCompressedLength();
+    }
+
+    /**
+     * Whether the payload is stored in an archive in the current compression, so it can be copied as it is
+     *
+     */
+    boolean isRaw() {
+        return null != source && null != offset && entryManifest.getCompression().getType() == payloadCompression;
     }
 
     public void write(PharOutputStream out) throws IOException {
+        long size = compress(out, null, null);
+        if (size >= 0) {
+            this.entryManifest.setCompressedLength(size);
+        }
+    }
+
+    /**
+     * Compress entry data into the stream, digesting the payload when an algorithm is given
+     *
+     * @param archive archive giving the codec level, strategy and adaptive compression, if any
+     * @return number of payload bytes written, or -1 when the entry has no data
+     */
+    long compress(OutputStream out, Signature.Algorithm algorithm, Phar archive) throws IOException {
+
+        int level = null != archive ? archive.getCompressionLevel() : Codec.DEFAULT_LEVEL;
+        int strategy = null != archive ? archive.getCompressionStrategy() : Codec.DEFAULT_STRATEGY;
+
+        MessageDigest md = null == algorithm ? null : algorithm.getMessageDigest();
+        setDigest(null, null);
+
+        PayloadOutputStream payload = new PayloadOutputStream(out, md);
+        if (null != data && null != archive && archive.isAdaptiveCompression()
+                && entryManifest.getCompression().getType() == payloadCompression
+                && Compression.Type.NONE != payloadCompression && entryManifest.getUncompressedLength() > 0
+                && data.getSize() > archive.getAdaptiveThreshold() * entryManifest.getUncompressedLength()) {
+            // Content taken from a stream was compressed as a whole already, so its actual ratio decides
+            entryManifest.getCompression().setType(Compression.Type.NONE);
+        }
+
+        if (null != data && entryManifest.getCompression().getType() == payloadCompression) {
+            // Content taken from a stream is already compressed
+            data.writeTo(payload);
+        } else {
+            InputStream is = openInputStream();
+            if (null == is) {
+                if (null != md) {
+                    setDigest(algorithm, md.digest());
+                }
+                return -1;
+            }
+
+            if (null != archive && archive.isAdaptiveCompression()) {
+                is = adapt(is, level, strategy, archive.getAdaptiveThreshold());
+            }
+
+            // The content is read once, taking its CRC32 and size on the way
+            CRC32 crc = new CRC32();
+            long size = 0;
+            try (OutputStream compressor = getCompressorOutputStream(payload,
+                    entryManifest.getCompression().getType(), level, strategy)) {
 
-        ByteArrayOutputStream compressedData = (ByteArrayOutputStream) getOutputStream();
-        if (null != compressedData) {
-            this.entryManifest.setCompressedSize(compressedData.toByteArray().length);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+                    compressor.write(buffer, 0, n);
+                    crc.update(buffer, 0, n);
+                    size += n;
+                }
+            } finally {
+                is.close();
+            }
+
+            entryManifest.setCRC32((int) crc.getValue());
+            entryManifest.setUncompressedLength(size);
+        }
+
+        if (null != md) {
+            setDigest(algorithm, md.digest());
+        }
+
+        return payload.getCount();
+    }
+
+    /**
+     * Store the entry uncompressed when its leading sample shows content that does not compress
+     *
+     * @return stream of the whole content, including the sample
+     */
+    private InputStream adapt(final InputStream is, int level, int strategy, double threshold) throws IOException {
+        Compression compression = entryManifest.getCompression();
+        if (Compression.Type.NONE == compression.getType()) {
+            return is;
+        }
+
+        byte[] sample = new byte[CompressionAdvisor.SAMPLE_SIZE];
+        int length = 0;
+        for (int n = 0; n >= 0 && length < sample.length; n = is.read(sample, length, sample.length - length)) {
+            length += n;
+        }
+
+        if (CompressionAdvisor.isCompressed(getName(), sample, length)
+                || !CompressionAdvisor.isCompressible(Codecs.get(compression.getType()), sample, length,
+                        null != compression.getLevel() ? compression.getLevel() : level,
+                        null != compression.getStrategy() ? compression.getStrategy() : strategy, threshold)) {
+            compression.setType(Compression.Type.NONE);
+        }
+
+        return new SequenceInputStream(new ByteArrayInputStream(sample, 0, length), is);
+    }
+
+    /**
+     * Set the digest of the stored payload
+     *
+     */
+    void setDigest(Signature.Algorithm algorithm, byte[] digest) {
+        this.digestAlgorithm = algorithm;
+        this.digest = digest;
+    }
+
+    /**
+     * Verify the stored payload against the digest taken when it was written.
+     *
+     * @return false when the payload does not match, or there is no digest to compare with
+     */
+    public boolean verifyDigest() throws IOException {
+        if (null == digest || null == digestAlgorithm || null == source || null == offset) {
+            return false;
+        }
+
+        MessageDigest md = digestAlgorithm.getMessageDigest();
+        try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+            raf.seek(offset);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (long remaining = getPayloadSize(); remaining > 0;) {
+                int n = raf.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    return false;
+                }
+                md.update(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+
+        return MessageDigest.isEqual(digest, md.digest());
+    }
+
+    /**
+     * Counts the payload bytes and keeps the archive stream open when the compressor is closed
+     *
+     */
+    private static final class PayloadOutputStream extends FilterOutputStream {
+
+        private final MessageDigest md;
+
+        private long count = 0;
+
+        PayloadOutputStream(final OutputStream out, final MessageDigest md) {
+            super(out);
+            this.md = md;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (null != md) {
+                md.update((byte) b);
+            }
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (null != md) {
+                md.update(b, off, len);
+            }
+            count += len;
+        }
 
-            out.write(compressedData.toByteArray());
+        @Override
+        public void close() throws IOException {
+            flush();
         }
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Walks a directory tree in parallel, creating an entry for each file
+ *
+ * <p>Every directory is listed by its own task. The entries come out in a depth-first order with the names in each
+ * directory sorted, so the result does not depend on the file system or on the scheduling. Include and exclude
+ * patterns are globs matched against the path relative to the walked directory. A directory is not listed at all
+ * when an exclude pattern matches its path, or ends with {@code /**} and matches its path without that suffix, as
+ * {@code tests/**} does for {@code tests}. Other patterns, such as {@code **}{@code /*.txt}, only filter the files
+ * and leave their directories walked.</p>
+ *
+ */
+final class DirectoryWalker {
+
+    private final Path root;
+
+    private final String prefix;
+
+    private final Compression.Type compression;
+
+    private final List<PathMatcher> includes = new ArrayList<>();
+
+    private final List<PathMatcher> excludes = new ArrayList<>();
+
+    private final List<PathMatcher> excludedDirectories = new ArrayList<>();
+
+    DirectoryWalker(final Path root, final String prefix, final Compression.Type compression,
+            final String[] includes, final String[] excludes) {
+        this.root = root;
+        this.prefix = prefix;
+        this.compression = compression;
+
+        for (String pattern : null == includes ? new String[0] : includes) {
+            this.includes.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+        for (String pattern : null == excludes ? new String[0] : excludes) {
+            this.excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+            if (pattern.endsWith("/**") && pattern.length() > 3) {
+                // Everything below the directory is excluded, so it need not be listed
+                this.excludedDirectories.add(FileSystems.getDefault().getPathMatcher(
+                        "glob:" + pattern.substring(0, pattern.length() - 3)));
+            }
+        }
+    }
+
+    List<DataEntry> walk(final int parallelism) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(parallelism, 1));
+        try {
+            return pool.invoke(new ListTask(root));
+        } catch (RuntimeException ex) {
+            // The pool may rethrow a copy of the failure, so look for the cause
+            for (Throwable cause = ex; null != cause; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw ex;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private boolean matches(final List<PathMatcher> matchers, final Path relative) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relative)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private final class ListTask extends RecursiveTask<List<DataEntry>> {
+
+        private final Path directory;
+
+        ListTask(final Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected List<DataEntry> compute() {
+            try {
+                return list();
+            } catch (IOException ex) {
+                throw new WalkException(ex);
+            }
+        }
+
+        private List<DataEntry> list() throws IOException {
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path child : stream) {
+                    children.add(child);
+                }
+            }
+            Collections.sort(children);
+
+            // Subdirectories are forked, files are taken in place; both are collected in name order
+            List<Object> parts = new ArrayList<>(children.size());
+            for (Path child : children) {
+                Path relative = root.relativize(child);
+                if (matches(excludes, relative)) {
+                    continue;
+                }
+
+                BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                if (attrs.isDirectory()) {
+                    if (matches(excludedDirectories, relative)) {
+                        continue;
+                    }
+                    ListTask task = new ListTask(child);
+                    task.fork();
+                    parts.add(task);
+                } else if (includes.isEmpty() || matches(includes, relative)) {
+                    parts.add(DataEntry.createFromFile(child.toFile(), attrs,
+                            prefix + relative.toString().replace("\\", "/"), compression));
+                }
+            }
+
+            List<DataEntry> entries = new ArrayList<>();
+            for (Object part : parts) {
+                if (part instanceof ListTask) {
+                    entries.addAll(((ListTask) part).join());
+                } else {
+                    entries.add((DataEntry) part);
+                }
+            }
+
+            return entries;
+        }
+    }
+
+    private static final class WalkException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        WalkException(final IOException cause) {
+            super(cause);
+        }
+    }
+}
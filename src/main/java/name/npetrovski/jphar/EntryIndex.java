@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Index of PHAR entries by name, kept up to date as entries are added and removed.
+ *
+ * <p>Names are hashed, so lookups run in constant time. A lookup of "dir" that finds no entry of that name falls back
+ * to "dir/", so directories resolve with or without the trailing slash.</p>
+ *
+ * <p>The names are also kept sorted, so all entries sharing a prefix form one contiguous range that is located and
+ * removed in O(log n + k).</p>
+ *
+ */
+final class EntryIndex<E extends Entry> {
+
+    /**
+     * Entries of each name, in archive order
+     */
+    private final Map<String, List<E>> entries = new HashMap<>();
+
+    private final TreeSet<String> names = new TreeSet<>();
+
+    private int size = 0;
+
+    /**
+     * Build an index over the given entries, in archive order
+     *
+     */
+    static <E extends Entry> EntryIndex<E> build(Collection<? extends E> entries) {
+        EntryIndex<E> index = new EntryIndex<>();
+        for (E entry : entries) {
+            index.add(entry);
+        }
+
+        return index;
+    }
+
+    /**
+     * Number of entries in the index
+     *
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Whether an entry of exactly the given name is indexed
+     *
+     */
+    boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Find entry by name or directory alias; the first in archive order wins, like the linear scan it replaces
+     *
+     */
+    E get(String name) {
+        List<E> named = entries.get(name);
+        if (null == named && !name.isEmpty() && !name.endsWith("/")) {
+            named = entries.get(name + "/");
+        }
+
+        return null != named ? named.get(0) : null;
+    }
+
+    /**
+     * Find all entries whose name starts with the prefix, in name order
+     *
+     */
+    List<E> withPrefix(String prefix) {
+        List<E> result = new ArrayList<>();
+        for (String name : names.tailSet(prefix)) {
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            result.addAll(entries.get(name));
+        }
+
+        return result;
+    }
+
+    /**
+     * Find all entries with exactly the given name, in archive order
+     *
+     */
+    List<E> named(String name) {
+        List<E> named = entries.get(name);
+        return null != named ? new ArrayList<>(named) : Collections.<E>emptyList();
+    }
+
+    /**
+     * Find the first entry, in name order, whose name starts with the prefix
+     *
+     */
+    E firstWithPrefix(String prefix) {
+        String name = names.ceiling(prefix);
+        return null != name && name.startsWith(prefix) ? entries.get(name).get(0) : null;
+    }
+
+    /**
+     * Register an entry after all entries of the same name
+     *
+     */
+    void add(E entry) {
+        String name = entry.getName();
+        List<E> named = entries.get(name);
+        if (null == named) {
+            named = new ArrayList<>(1);
+            entries.put(name, named);
+            names.add(name);
+        }
+        named.add(entry);
+        size++;
+    }
+
+    /**
+     * Unregister the given entry
+     *
+     * @return false when the entry is not indexed under its current name
+     */
+    boolean remove(E entry) {
+        String name = entry.getName();
+        List<E> named = entries.get(name);
+        if (null == named) {
+            return false;
+        }
+
+        for (Iterator<E> it = named.iterator(); it.hasNext();) {
+            if (it.next() == entry) {
+                it.remove();
+                size--;
+                if (named.isEmpty()) {
+                    entries.remove(name);
+                    names.remove(name);
+                }
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Unregister all entries whose name starts with the prefix
+     *
+     * @return the removed entries, in name order
+     */
+    List<E> removePrefix(String prefix) {
+        List<E> removed = new ArrayList<>();
+        for (Iterator<String> it = names.tailSet(prefix).iterator(); it.hasNext();) {
+            String name = it.next();
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            removed.addAll(entries.remove(name));
+            it.remove();
+        }
+        size -= removed.size();
+
+        return removed;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Entry list of an archive that keeps its name index up to date
+ *
+ * <p>Every change updates the index in place. Only changes it cannot follow cheaply, such as inserting an entry ahead
+ * of another one of the same name, drop the index, which is then rebuilt once on the next lookup.</p>
+ *
+ */
+final class EntryList<E extends Entry> extends AbstractList<E> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of elements up to which removing them one by one beats a pass over the whole list
+     */
+    private static final int FEW = 8;
+
+    private final ArrayList<E> elements;
+
+    private transient EntryIndex<E> index;
+
+    EntryList() {
+        this.elements = new ArrayList<>();
+        this.index = new EntryIndex<>();
+    }
+
+    EntryList(final Collection<? extends E> elements) {
+        this.elements = new ArrayList<>(elements);
+        this.index = EntryIndex.build(this.elements);
+    }
+
+    /**
+     * Name index of the entries, rebuilt if a change dropped it
+     *
+     */
+    EntryIndex<E> getIndex() {
+        if (null == index) {
+            index = EntryIndex.build(elements);
+        }
+
+        return index;
+    }
+
+    /**
+     * Position of the given entry, compared by identity
+     *
+     */
+    int position(final E entry) {
+        for (int i = elements.size() - 1; i >= 0; i--) {
+            if (elements.get(i) == entry) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Remove all entries whose name starts with the prefix in a single pass
+     *
+     * @return the removed entries, in name order
+     */
+    List<E> removePrefix(final String prefix) {
+        List<E> removed = getIndex().removePrefix(prefix);
+        if (!removed.isEmpty()) {
+            drop(elements, removed);
+            modCount++;
+        }
+
+        return removed;
+    }
+
+    /**
+     * Drop the given elements, compared by identity, from the list in place, keeping the order of the others
+     *
+     * <p>A few elements are removed by position; more are removed in a single pass over the list.</p>
+     *
+     */
+    static <T> void drop(final List<T> list, final Collection<?> removed) {
+        if (removed.size() <= FEW) {
+            for (Object element : removed) {
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    if (list.get(i) == element) {
+                        list.remove(i);
+                        break;
+                    }
+                }
+            }
+            return;
+        }
+
+        Set<Object> drop = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        drop.addAll(removed);
+
+        int kept = 0;
+        for (int i = 0; i < list.size(); i++) {
+            T element = list.get(i);
+            if (!drop.contains(element)) {
+                list.set(kept++, element);
+            }
+        }
+        list.subList(kept, list.size()).clear();
+    }
+
+    @Override
+    public E get(final int index) {
+        return elements.get(index);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    @Override
+    public E set(final int position, final E element) {
+        E previous = elements.set(position, element);
+        modCount++;
+        if (null != index && (!index.remove(previous) || index.contains(element.getName()))) {
+            index = null;
+        } else if (null != index) {
+            index.add(element);
+        }
+        return previous;
+    }
+
+    @Override
+    public void add(final int position, final E element) {
+        elements.add(position, element);
+        modCount++;
+        if (null != index) {
+            if (position == elements.size() - 1 || !index.contains(element.getName())) {
+                index.add(element);
+            } else {
+                index = null;
+            }
+        }
+    }
+
+    @Override
+    public E remove(final int position) {
+        E removed = elements.remove(position);
+        modCount++;
+        if (null != index && !index.remove(removed)) {
+            index = null;
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean addAll(final Collection<? extends E> c) {
+        modCount++;
+        int from = elements.size();
+        boolean changed = elements.addAll(c);
+        if (null != index) {
+            for (int i = from; i < elements.size(); i++) {
+                index.add(elements.get(i));
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public void clear() {
+        elements.clear();
+        modCount++;
+        index = new EntryIndex<>();
+    }
+
+    @Override
+    protected void removeRange(final int fromIndex, final int toIndex) {
+        List<E> range = elements.subList(fromIndex, toIndex);
+        if (null != index) {
+            for (E element : range) {
+                if (!index.remove(element)) {
+                    index = null;
+                    break;
+                }
+            }
+        }
+        range.clear();
+        modCount++;
+    }
+}
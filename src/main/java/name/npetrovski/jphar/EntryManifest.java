@@ -35,6 +35,12 @@ import java.io.IOException;
 @XmlAccessorType(XmlAccessType.FIELD)
 public class EntryManifest implements Readable, Writable {
 
+    /**
+     * Largest size the 32-bit manifest fields can hold, taken as unsigned
+     *
+     */
+    public static final long MAX_SIZE = 0xFFFFFFFFL;
+
     private Integer uncompressedSize = 0;
 
     private Integer timestamp = 0;
@@ -49,6 +55,38 @@ public class EntryManifest implements Readable, Writable {
 
     private Metadata metadata = new Metadata();
 
+    /**
+     * Uncompressed size, taking the manifest field as unsigned
+     *
+     */
+    public long getUncompressedLength() {
+        return uncompressedSize & MAX_SIZE;
+    }
+
+    public void setUncompressedLength(long length) {
+        uncompressedSize = toUnsigned(length);
+    }
+
+    /**
+     * Compressed size, taking the manifest field as unsigned
+     *
+     */
+    public long getCompressedLength() {
+        return compressedSize & MAX_SIZE;
+    }
+
+    public void setCompressedLength(long length) {
+        compressedSize = toUnsigned(length);
+    }
+
+    private int toUnsigned(long length) {
+        if (length < 0 || length > MAX_SIZE) {
+            throw new IllegalArgumentException("Size of " + path + " out of the range of the manifest: " + length);
+        }
+
+        return (int) length;
+    }
+
     @Override
     public void read(PharInputStream is) throws IOException {
 
@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Extracts the entries of an archive into a directory
+ *
+ * <p>The payloads stored in the archive are read in a single sequential pass and decompressed on the executor,
+ * keeping at most the given window of compressed payloads in memory. Payloads beyond 4 MB are streamed from the
+ * archive by their own task instead.</p>
+ *
+ */
+final class Extractor {
+
+    private static final Comparator<DataEntry> BY_OFFSET = new Comparator<DataEntry>() {
+        @Override
+        public int compare(DataEntry a, DataEntry b) {
+            return a.getOffset().compareTo(b.getOffset());
+        }
+    };
+
+    private static final long MAX_BUFFERED_PAYLOAD = 4L << 20;
+
+    private final Phar phar;
+
+    private final Path directory;
+
+    private final OpenOption[] openOptions;
+
+    Extractor(final Phar phar, final Path directory, final CopyOption... options) {
+        this.phar = phar;
+        this.directory = directory.toAbsolutePath().normalize();
+
+        boolean replace = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING);
+        this.openOptions = new OpenOption[] {
+            replace ? StandardOpenOption.CREATE : StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE
+        };
+    }
+
+    void extract(final Executor executor, final int parallelism) throws IOException {
+        Map<Path, DataEntry> directories = new LinkedHashMap<>();
+        List<DataEntry> stored = new ArrayList<>();
+        List<DataEntry> external = new ArrayList<>();
+        Map<DataEntry, Path> targets = new IdentityHashMap<>();
+
+        Files.createDirectories(directory);
+        for (DataEntry entry : phar.getEntries()) {
+            Path target = resolve(entry.getName());
+            if (entry.isDirectory()) {
+                Files.createDirectories(target);
+                directories.put(target, entry);
+                continue;
+            }
+
+            Files.createDirectories(target.getParent());
+            targets.put(entry, target);
+            if (isStored(entry)) {
+                stored.add(entry);
+            } else {
+                external.add(entry);
+            }
+        }
+        Collections.sort(stored, BY_OFFSET);
+
+        int window = null == executor || parallelism <= 1 ? 0 : 2 * parallelism;
+        Deque<FutureTask<Void>> pending = new ArrayDeque<>();
+        try {
+            if (!stored.isEmpty()) {
+                try (InputStream is = new BufferedInputStream(Files.newInputStream(phar.toPath()),
+                        phar.getBufferSize())) {
+                    long position = 0;
+                    for (DataEntry entry : stored) {
+                        if (entry.getPayloadSize() > MAX_BUFFERED_PAYLOAD) {
+                            submit(new ExtractTask(entry, targets.get(entry), null, true), executor, window,
+                                    pending);
+                            continue;
+                        }
+
+                        skip(is, entry.getOffset() - position);
+                        byte[] payload = new byte[(int) entry.getPayloadSize()];
+                        readFully(is, payload);
+                        position = entry.getOffset() + payload.length;
+
+                        submit(new ExtractTask(entry, targets.get(entry), payload, true), executor, window,
+                                pending);
+                    }
+                }
+            }
+
+            for (DataEntry entry : external) {
+                submit(new ExtractTask(entry, targets.get(entry), null, false), executor, window, pending);
+            }
+
+            while (!pending.isEmpty()) {
+                await(pending.poll());
+            }
+        } finally {
+            for (FutureTask<Void> task : pending) {
+                task.cancel(true);
+            }
+        }
+
+        // Directories last, as creating their files changes their modification time
+        for (Map.Entry<Path, DataEntry> e : directories.entrySet()) {
+            setLastModified(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Resolve the entry path, refusing names that point outside of the target directory
+     *
+     */
+    private Path resolve(final String name) throws IOException {
+        Path target = directory.resolve(name.startsWith("/") ? name.substring(1) : name).normalize();
+        if (!target.startsWith(directory) || target.equals(directory)) {
+            throw new IOException("Entry outside of the target directory: " + name);
+        }
+
+        return target;
+    }
+
+    private boolean isStored(final DataEntry entry) {
+        return null != entry.getOffset() && null != entry.getSource()
+                && entry.getSource().getAbsolutePath().equals(phar.getAbsolutePath());
+    }
+
+    private void submit(final ExtractTask task, final Executor executor, final int window,
+            final Deque<FutureTask<Void>> pending) throws IOException {
+        if (window == 0) {
+            task.run();
+            await(task);
+            return;
+        }
+
+        if (pending.size() >= window) {
+            await(pending.poll());
+        }
+        pending.add(task);
+        executor.execute(task);
+    }
+
+    private static void await(final FutureTask<Void> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.toString());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static void skip(final InputStream is, final long n) throws IOException {
+        for (long remaining = n; remaining > 0;) {
+            long skipped = is.skip(remaining);
+            if (skipped <= 0) {
+                if (is.read() < 0) {
+                    throw new EOFException("Unexpected end of archive");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static void readFully(final InputStream is, final byte[] data) throws IOException {
+        for (int off = 0; off < data.length;) {
+            int n = is.read(data, off, data.length - off);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+            off += n;
+        }
+    }
+
+    private static void setLastModified(final Path target, final DataEntry entry) throws IOException {
+        Integer timestamp = entry.getEntryManifest().getTimestamp();
+        if (null != timestamp && timestamp != 0) {
+            Files.setLastModifiedTime(target, FileTime.from(timestamp & 0xFFFFFFFFL, TimeUnit.SECONDS));
+        }
+    }
+
+    private final class ExtractTask extends FutureTask<Void> {
+
+        ExtractTask(final DataEntry entry, final Path target, final byte[] payload, final boolean stored) {
+            super(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    extract(entry, target, payload, stored);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Decompress an entry into its file, checking the CRC32 of the content on the way
+     *
+     */
+    private void extract(final DataEntry entry, final Path target, final byte[] payload, final boolean stored)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        try (OutputStream out = Files.newOutputStream(target, openOptions)) {
+            InputStream is = null == payload ? (stored ? entry.openInputStream() : entry.getInputStream())
+                    : payload.length == 0 ? null : entry.getInputStream(new ByteArrayInputStream(payload));
+
+            if (null != is) {
+                try {
+                    byte[] buffer = new byte[8192];
+                    for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+                        out.write(buffer, 0, n);
+                        crc.update(buffer, 0, n);
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+        }
+
+        // Entries not written yet take their CRC32 only when they are compressed
+        Integer expected = entry.getEntryManifest().getCRC32();
+        if (stored && null != expected && expected != (int) crc.getValue()) {
+            Files.deleteIfExists(target);
+            throw new IOException("CRC32 mismatch for entry " + entry.getName());
+        }
+
+        setLastModified(target, entry);
+    }
+}
@@ -24,13 +24,17 @@
 package name.npetrovski.jphar;
 
 import de.ailis.pherialize.Pherialize;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlValue;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 
 @Data
 @XmlAccessorType(XmlAccessType.FIELD)
@@ -39,6 +43,17 @@ public class Metadata implements Readable, Writable {
     @XmlValue
     private String meta = "";
 
+    /**
+     * Serialized bytes as read, written back as they are while the metadata is not changed
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient byte[] raw;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient String rawMeta;
+
     public Metadata() {
     }
 
@@ -46,25 +61,46 @@ public class Metadata implements Readable, Writable {
         this.meta = Pherialize.serialize(data);
     }
 
+    /**
+     * Serialized metadata bytes, exactly as read when the metadata was not changed since
+     *
+     */
+    public byte[] getBytes() {
+        if (null != raw && meta == rawMeta) {
+            return raw.clone();
+        }
+
+        return null != meta ? meta.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    /**
+     * Copy of the metadata, keeping the bytes as read
+     *
+     */
+    Metadata copy() {
+        Metadata copy = new Metadata();
+        copy.meta = meta;
+        copy.raw = raw;
+        copy.rawMeta = rawMeta;
+
+        return copy;
+    }
+
     public void read(PharInputStream is) throws IOException {
         int len = is.readRInt();
 
         if (len > 0) {
-            byte[] metadataBytes = new byte[len];
-            is.read(metadataBytes, 0, len);
-
-            meta = new String(metadataBytes);
+            // Serialized values may hold binary strings, so the bytes are kept next to their decoded form
+            raw = is.readBytes(len);
+            meta = new String(raw, StandardCharsets.UTF_8);
+            rawMeta = meta;
         }
     }
 
     public void write(PharOutputStream out) throws IOException {
-        if (null != meta) {
-            byte[] data = meta.getBytes("UTF-8");
-            out.writeInt(data.length);
-            out.write(data);
-        } else {
-            out.writeInt(0);
-        }
+        byte[] data = getBytes();
+        out.writeInt(data.length);
+        out.write(data);
     }
 
     @Override
@@ -41,10 +41,7 @@ public class Name implements Readable, Writable {
     public void read(PharInputStream is) throws IOException {
         int len = is.readRInt();
         if (len > 0) {
-            byte[] nameBytes = new byte[len];
-            is.read(nameBytes, 0, len);
-
-            name = new String(nameBytes);
+            name = is.readString(len);
         }
     }
 
@@ -23,8 +23,12 @@
  */
 package name.npetrovski.jphar;
 
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.commons.compress.utils.CountingOutputStream;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -35,11 +39,37 @@ import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import java.io.*;
-import java.nio.file.DirectoryStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,18 +79,134 @@ public class Phar extends File {
 
     private static final Logger LOGGER = Logger.getLogger(Phar.class.getName());
 
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Random RANDOM = new Random();
+
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final long SEGMENT_OVERLAP = 64L << 20;
+
+    /**
+     * Entries beyond this size are compressed on the writing thread instead of into memory on the executor
+     */
+    private static final long LARGE_ENTRY_SIZE = 16L << 20;
+
+    /**
+     * Content size of the entries being compressed in memory on the executor at a time
+     */
+    private static final long MAX_PENDING_SIZE = 64L << 20;
+
     private Stub stub = new Stub();
 
     private Manifest manifest = new Manifest();
 
-    private List<DataEntry> entries = new LinkedList<>();
+    private List<DataEntry> entries = new EntryList<>();
 
     private Signature signature = new Signature();
 
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private boolean entryDigests = false;
+
+    /**
+     * Codec level for the entries compressed on write that do not set their own
+     */
+    private int compressionLevel = Codec.DEFAULT_LEVEL;
+
+    /**
+     * Codec strategy for the entries compressed on write that do not set their own
+     */
+    private int compressionStrategy = Codec.DEFAULT_STRATEGY;
+
+    /**
+     * Whether entries compressed on write are stored uncompressed when their content does not compress
+     */
+    private boolean adaptiveCompression = false;
+
+    /**
+     * Compressed to uncompressed ratio of a content sample above which adaptive compression stores the entry
+     */
+    private double adaptiveThreshold = 0.9;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final EnumSet<Option> options = EnumSet.noneOf(Option.class);
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient ByteBuffer[] mapping;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient long signatureOffset;
+
+    /**
+     * Identity of the written payloads, renewed when the archive is rewritten
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient Object generation = new Object();
+
+    /**
+     * Cache of decompressed entry contents, if any
+     */
+    private transient ContentCache contentCache;
+
+    /**
+     * PHAR open options
+     *
+     */
+    public enum Option {
+
+        /**
+         * Map the archive into memory once and serve entry payloads as views over the mapped region; archives
+         * beyond 1 GB are mapped in segments
+         */
+        MEMORY_MAPPED,
+
+        /**
+         * Parse only the manifest; the stub and the signature are read on first access
+         */
+        LAZY
+    }
+
+    /**
+     * What to do with entries of the same name found in several archives being merged
+     *
+     */
+    public enum MergePolicy {
+
+        /**
+         * Refuse the merge
+         */
+        FAIL,
+
+        /**
+         * Keep the entry found first
+         */
+        KEEP_FIRST,
+
+        /**
+         * Replace the entry with the one found last, at the position of the first
+         */
+        KEEP_LAST
+    }
+
     public Phar(String pathname) {
+        this(pathname, true);
+    }
+
+    public Phar(String pathname, Option... options) {
+        this(pathname, true, options);
+    }
+
+    private Phar(String pathname, boolean read, Option... options) {
         super(pathname);
 
-        if (super.exists() && super.isFile()) {
+        this.options.addAll(Arrays.asList(options));
+
+        if (read && super.exists() && super.isFile()) {
             read();
         } else {
             manifest.getAlias().setName(super.getName());
@@ -71,6 +217,76 @@ public class Phar extends File {
         this(file.getPath());
     }
 
+    public Phar(File file, Option... options) {
+        this(file.getPath(), options);
+    }
+
+    /**
+     * Create an empty archive that replaces the file when written, without reading what the file holds now
+     *
+     */
+    static Phar empty(File file) {
+        return new Phar(file.getPath(), false);
+    }
+
+    /**
+     * Copy of the archive sharing the payloads but none of the mutable state, without parsing the file again
+     *
+     * <p>The stub and signature are copied when they were read, otherwise the copy reads them on first access like
+     * this archive would.</p>
+     *
+     */
+    synchronized Phar copy() {
+        Phar phar = new Phar(getPath(), false);
+        phar.options.addAll(options);
+        phar.contentCache = contentCache;
+        phar.signatureOffset = signatureOffset;
+
+        if (null == stub) {
+            phar.stub = null;
+        } else {
+            phar.stub.setCode(stub.getCode());
+            phar.stub.setLastModified(stub.getLastModified());
+        }
+
+        if (null == signature) {
+            phar.signature = null;
+        } else {
+            phar.signature.setAlgorithm(signature.getAlgorithm());
+            phar.signature.setSignature(null != signature.getSignature() ? signature.getSignature().clone() : null);
+        }
+
+        Manifest copy = phar.manifest;
+        copy.setManifestLength(manifest.getManifestLength());
+        copy.getVersion().setVersion(manifest.getVersion().getVersion());
+        copy.getCompression().setType(manifest.getCompression().getType());
+        copy.getAlias().setName(manifest.getAlias().getName());
+        copy.setMetadata(manifest.getMetadata().copy());
+
+        List<DataEntry> copies = new ArrayList<>(entries.size());
+        for (DataEntry entry : entries) {
+            DataEntry e = entry.copy();
+            copies.add(e);
+            copy.getEntryManifest().add(e.getEntryManifest());
+        }
+        copy.setNumberOfFiles(copies.size());
+        phar.setEntries(copies);
+
+        return phar;
+    }
+
+    /**
+     * Selects the compression of each entry being transcoded
+     *
+     */
+    public interface CompressionPolicy {
+
+        /**
+         * @return compression of the entry in the new archive, or null to keep it as it is
+         */
+        Compression.Type select(DataEntry entry);
+    }
+
     private interface EntryProvider {
 
         List<DataEntry> getPharEntries() throws IOException;
@@ -101,46 +317,24 @@ public class Phar extends File {
 
         private final File source;
         private final Compression.Type compression;
+        private final int parallelism;
+        private final String[] includes;
+        private final String[] excludes;
 
-        DirectoryEntryProvider(final File file, final Compression.Type compression) {
+        DirectoryEntryProvider(final File file, final Compression.Type compression, final int parallelism,
+                final String[] includes, final String[] excludes) {
             this.source = file;
             this.compression = compression;
+            this.parallelism = parallelism;
+            this.includes = includes;
+            this.excludes = excludes;
         }
 
         @Override
         public List<DataEntry> getPharEntries()
                 throws IOException {
-            List<DataEntry> entries = new LinkedList<>();
-            addPharEntriesRecursively(entries, source.toPath());
-            return entries;
-
-        }
-
-        private void addPharEntriesRecursively(final List<DataEntry> entries, final java.nio.file.Path directory)
-                throws IOException {
-            try (DirectoryStream<java.nio.file.Path> directoryStream = Files.newDirectoryStream(directory)) {
-                for (java.nio.file.Path element : directoryStream) {
-
-                    String path = String.format("%s/%s", source.getName(),
-                            source.toPath().relativize(element).toString());
-
-                    File file = element.toFile();
-                    if (file.isDirectory()) {
-                        String[] elements = file.list();
-                        if (null != elements && elements.length > 0) {
-                            addPharEntriesRecursively(entries, element);
-                        }
-                    } else {
-
-                        if (file.isDirectory()) {
-                            path = path + "/";
-                        }
-                        DataEntry entry = DataEntry.createFromFile(file, this.compression);
-                        entry.getEntryManifest().getPath().setName(path.replace("\\", "/"));
-                        entries.add(entry);
-                    }
-                }
-            }
+            return new DirectoryWalker(source.getCanonicalFile().toPath(), source.getName() + "/", compression,
+                    includes, excludes).walk(parallelism);
         }
     }
 
@@ -158,8 +352,29 @@ public class Phar extends File {
     }
 
     public void add(final File file, final Compression.Type compression) throws IOException {
+        add(file, compression, null, null);
+    }
+
+    /**
+     * Add a file, or the files of a directory matching the include and exclude globs
+     *
+     * <p>The patterns are matched against the paths relative to the directory, for example {@code **}{@code /*.php}
+     * or {@code tests/**}. Directories are scanned in parallel on all available processors.</p>
+     *
+     */
+    public void add(final File file, final Compression.Type compression, final String[] includes,
+            final String[] excludes) throws IOException {
+        add(file, compression, Runtime.getRuntime().availableProcessors(), includes, excludes);
+    }
+
+    /**
+     * Add a file, or the files of a directory scanned on the given number of threads
+     *
+     */
+    public void add(final File file, final Compression.Type compression, final int parallelism,
+            final String[] includes, final String[] excludes) throws IOException {
         if (file.isDirectory()) {
-            add(new DirectoryEntryProvider(file, compression));
+            add(new DirectoryEntryProvider(file, compression, parallelism, includes, excludes));
         } else {
             add(new FileEntryProvider(file, compression));
         }
@@ -169,6 +384,136 @@ public class Phar extends File {
         add(file, Compression.Type.NONE);
     }
 
+    /**
+     * Add an entry, such as one created from a stream
+     *
+     */
+    public void add(final DataEntry entry) throws IOException {
+        add(Collections.singletonList(entry));
+    }
+
+    /**
+     * Add entries in the given order
+     *
+     */
+    public void add(final Collection<DataEntry> entries) throws IOException {
+        add(new EntryProvider() {
+            @Override
+            public List<DataEntry> getPharEntries() {
+                return new ArrayList<>(entries);
+            }
+        });
+    }
+
+    /**
+     * Merge the entries of other archives into this one
+     *
+     * <p>The merged entries refer to the payloads of their archives, so the following write copies them
+     * byte-for-byte with their CRC32, sizes and compression, without decompressing anything. Entries of this
+     * archive come first; directories found in several archives are kept once whatever the policy.</p>
+     *
+     * @throws IllegalArgumentException on entries of the same name with {@link MergePolicy#FAIL}, leaving this
+     * archive unchanged
+     */
+    public void merge(final MergePolicy policy, final Phar... sources) {
+        List<DataEntry> merged = new ArrayList<>(entries);
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < merged.size(); i++) {
+            positions.put(merged.get(i).getName(), i);
+        }
+
+        for (Phar source : sources) {
+            for (DataEntry entry : source.getEntries()) {
+                Integer position = positions.get(entry.getName());
+                if (null == position) {
+                    positions.put(entry.getName(), merged.size());
+                    merged.add(entry.copy());
+                } else if (!entry.isDirectory()) {
+                    switch (policy) {
+                        case FAIL:
+                            throw new IllegalArgumentException("Duplicate entry: " + entry.getName());
+                        case KEEP_LAST:
+                            merged.set(position, entry.copy());
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+        }
+
+        manifest.getEntryManifest().clear();
+        for (DataEntry entry : merged) {
+            manifest.getEntryManifest().add(entry.getEntryManifest());
+        }
+        manifest.setNumberOfFiles(merged.size());
+        setEntries(merged);
+    }
+
+    /**
+     * Write a new archive merging the given ones, with the stub, alias and signature algorithm of the first
+     *
+     * @see #merge(MergePolicy, Phar...)
+     */
+    public static Phar merge(final File target, final MergePolicy policy, final Phar... sources)
+            throws IOException {
+        Phar phar = empty(target);
+        if (sources.length > 0) {
+            phar.setStub(sources[0].getStub().getCode());
+            phar.setSignatureAlgorithm(sources[0].getSignature().getAlgorithm());
+            phar.getManifest().getAlias().setName(sources[0].getManifest().getAlias().getName());
+        }
+        phar.merge(policy, sources);
+        phar.write();
+
+        return phar;
+    }
+
+    /**
+     * Write a copy of the archive with all entries in the given compression
+     *
+     * @see #transcode(File, CompressionPolicy, int)
+     */
+    public Phar transcode(final File target, final Compression.Type compression, final int parallelism)
+            throws IOException {
+        return transcode(target, new CompressionPolicy() {
+            @Override
+            public Compression.Type select(DataEntry entry) {
+                return compression;
+            }
+        }, parallelism);
+    }
+
+    /**
+     * Write a copy of the archive with the entries in the compression selected by the policy
+     *
+     * <p>The entries are decompressed and compressed again on a pool of the given number of threads, and streamed
+     * into the new archive in order. Entries already in their selected compression, and directories, are copied
+     * byte-for-byte. The stub, alias, API version, metadata and signature algorithm are carried over. This archive is
+     * left unchanged.</p>
+     *
+     */
+    public Phar transcode(final File target, final CompressionPolicy policy, final int parallelism)
+            throws IOException {
+        Phar phar = empty(target);
+        phar.setStub(getStub().getCode());
+        phar.setSignatureAlgorithm(getSignature().getAlgorithm());
+        phar.getManifest().getVersion().setVersion(manifest.getVersion().getVersion());
+        phar.getManifest().getAlias().setName(manifest.getAlias().getName());
+        phar.getManifest().setMetadata(manifest.getMetadata().copy());
+        phar.merge(MergePolicy.KEEP_FIRST, this);
+
+        for (DataEntry entry : phar.getEntries()) {
+            Compression.Type type = entry.isDirectory() ? null : policy.select(entry);
+            if (null != type) {
+                entry.getEntryManifest().getCompression().setType(type);
+            }
+        }
+        phar.write(parallelism);
+
+        return phar;
+    }
+
     public void add(final File file, String compression) throws IOException {
         Compression.Type type = Compression.Type.getEnumByName(compression);
         if (null == type) {
@@ -195,7 +540,7 @@ public class Phar extends File {
      *
      */
     public void setSignatureAlgorithm(final Signature.Algorithm algorithm) {
-        signature.setAlgorithm(algorithm);
+        getSignature().setAlgorithm(algorithm);
     }
 
     public void setSignatureAlgorithm(final String algorithm) {
@@ -220,6 +565,10 @@ public class Phar extends File {
     private void read() {
         try {
             read(new FileInputStream(this));
+
+            if (options.contains(Option.MEMORY_MAPPED)) {
+                map();
+            }
         } catch (IOException ex) {
             LOGGER.log(Level.SEVERE, ex.toString(), ex);
         }
@@ -231,59 +580,508 @@ public class Phar extends File {
      */
     private void read(InputStream inp) throws IOException {
 
+        boolean lazy = options.contains(Option.LAZY);
+
         try (PharInputStream is = new PharInputStream(inp)) {
 
-            stub.read(is);
+            if (lazy) {
+                Stub.skip(is);
+                stub = null;
+            } else {
+                stub.read(is);
+            }
 
             manifest.read(is);
 
+            long offset = is.getPosition();
             for (EntryManifest e : manifest.getEntryManifest()) {
                 DataEntry entry = new DataEntry(e);
-                entry.setSource(this);
-                entry.read(is);
+                if (lazy) {
+                    entry.locate(this, offset);
+                } else {
+                    entry.setSource(this);
+                    entry.read(is);
+                }
                 entries.add(entry);
+                offset += e.getCompressedLength();
             }
+            signatureOffset = offset;
 
-            signature.read(is);
+            if (lazy) {
+                signature = null;
+            } else {
+                signature.read(is);
+            }
 
             is.close();
         }
+
+        // Built right away, so archives shared between threads are not changed by their first lookup
+        getIndex();
+    }
+
+    /**
+     * Get stub, reading it from the archive on first access in lazy mode
+     *
+     */
+    public synchronized Stub getStub() {
+        if (null == stub) {
+            Stub loaded = new Stub();
+            try (PharInputStream is = new PharInputStream(new FileInputStream(this))) {
+                loaded.read(is);
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, ex.toString(), ex);
+            }
+            stub = loaded;
+        }
+
+        return stub;
+    }
+
+    /**
+     * Get signature, reading it from the archive on first access in lazy mode
+     *
+     */
+    public synchronized Signature getSignature() {
+        if (null == signature) {
+            Signature loaded = new Signature();
+            try (FileChannel channel = FileChannel.open(toPath(), StandardOpenOption.READ)) {
+                channel.position(signatureOffset);
+                loaded.read(new PharInputStream(Channels.newInputStream(channel)));
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, ex.toString(), ex);
+            }
+            signature = loaded;
+        }
+
+        return signature;
+    }
+
+    /**
+     * Map PHAR file into memory
+     *
+     * <p>Each segment overlaps the next one by {@link #SEGMENT_OVERLAP}, so a payload up to that size is always
+     * within a single segment.</p>
+     *
+     */
+    private void map() throws IOException {
+        try (FileChannel channel = FileChannel.open(toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer[] segments = new ByteBuffer[(int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, size - position));
+            }
+            mapping = segments;
+        }
+    }
+
+    /**
+     * Get a view over the mapped payload region, or null when the archive is not mapped or the payload does not
+     * fit in a segment
+     *
+     */
+    ByteBuffer getPayload(long offset, long size) {
+        if (null == mapping) {
+            return null;
+        }
+
+        int index = (int) (offset / SEGMENT_SIZE);
+        long start = offset - index * SEGMENT_SIZE;
+        if (index >= mapping.length || start + size > mapping[index].capacity()) {
+            return null;
+        }
+
+        ByteBuffer view = mapping[index].duplicate();
+        view.limit((int) (start + size));
+        view.position((int) start);
+        return view.slice();
     }
 
     /**
      * Write into PHAR file
      *
+     * <p>Entries that are new or whose compression changed are compressed into a temporary file first, so the
+     * manifest can carry the final sizes. Entries read from an archive and left in their stored compression are
+     * copied byte-for-byte from it without being decompressed. The archive is streamed into a temporary file next
+     * to the target while the signature digest is updated on the fly, and then moved over the target. The memory
+     * use stays bounded by {@link #getBufferSize()} regardless of the archive size.</p>
+     *
+     * <p>After writing, all entries refer to their payloads in this archive, so a following write only compresses
+     * what was added or changed since.</p>
+     *
      */
     public void write() throws IOException {
-        ByteArrayOutputStream data = new ByteArrayOutputStream();
-        try (PharOutputStream out = new PharOutputStream(data)) {
-            // Prepare entry data
-            ByteArrayOutputStream entryData = new ByteArrayOutputStream();
-            try (PharOutputStream pos = new PharOutputStream(entryData)) {
+        write(null, 1);
+    }
+
+    /**
+     * Write into PHAR file, compressing the entries on a pool of the given number of threads
+     *
+     */
+    public void write(final int parallelism) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(parallelism, 1));
+        try {
+            write(executor, parallelism);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Write into PHAR file, compressing the entries on the executor.
+     *
+     * <p>Each entry is compressed into memory on the executor, and the compressed entries wait there to be written
+     * in manifest order, so the output is byte-identical to {@link #write()}. At most twice the parallelism of
+     * entries, and entries of at most 64 MB of content in total, are pending at a time. Entries beyond 16 MB are
+     * compressed on the writing thread instead, straight into the output.</p>
+     *
+     */
+    public void write(final Executor executor, final int parallelism) throws IOException {
+        Path directory = getAbsoluteFile().getParentFile().toPath();
+        Path spill = Files.createTempFile(directory, "." + getName(), ".tmp");
+        Path target = null;
+        Map<String, FileChannel> sources = new HashMap<>();
+        try {
+            List<DataEntry> changed = new ArrayList<>();
+            for (DataEntry entry : entries) {
+                if (!entry.isRaw()) {
+                    changed.add(entry);
+                }
+            }
+
+            Signature sign = getSignature();
+            Signature.Algorithm digestAlgorithm = entryDigests ? sign.getAlgorithm() : null;
+
+            try (PharOutputStream out = new PharOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(spill), bufferSize))) {
+                if (null == executor || parallelism <= 1) {
+                    for (DataEntry entry : changed) {
+                        long size = entry.compress(out, digestAlgorithm, this);
+                        entry.getEntryManifest().setCompressedLength(size < 0 ? 0 : size);
+                    }
+                } else {
+                    writeParallel(out, changed, digestAlgorithm, executor, 2 * parallelism);
+                }
+            }
+
+            target = createTarget(directory);
+            MessageDigest md = sign.getMessageDigest();
+            long dataOffset;
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE);
+                    InputStream compressed = Files.newInputStream(spill)) {
+
+                DigestOutputStream digest = new DigestOutputStream(Channels.newOutputStream(channel), md);
+                CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(digest, bufferSize));
+                PharOutputStream out = new PharOutputStream(counter);
+
+                out.write(getStub());
+                out.write(manifest);
+                dataOffset = counter.getBytesWritten();
+
+                byte[] buffer = new byte[bufferSize];
+                Iterator<DataEntry> pending = changed.iterator();
+                DataEntry next = pending.hasNext() ? pending.next() : null;
                 for (DataEntry entry : entries) {
-                    pos.write(entry);
+                    if (entry == next) {
+                        copy(compressed, entry.getEntryManifest().getCompressedLength(), out, buffer);
+                        next = pending.hasNext() ? pending.next() : null;
+                    } else {
+                        // Unchanged payloads keep their digest, unless it is missing or of another algorithm
+                        MessageDigest entryDigest = null != digestAlgorithm
+                                && (null == entry.getDigest() || digestAlgorithm != entry.getDigestAlgorithm())
+                                ? digestAlgorithm.getMessageDigest() : null;
+
+                        copy(openSource(sources, entry.getSource()), entry.getOffset(), entry.getPayloadSize(), out,
+                                buffer, entryDigest);
+
+                        if (null != entryDigest) {
+                            entry.setDigest(digestAlgorithm, entryDigest.digest());
+                        }
+                    }
+                }
+                out.flush();
+
+                digest.on(false);
+                sign.setSignature(md.digest());
+                out.write(sign);
+                out.flush();
+            }
+
+            closeSources(sources);
+            try {
+                Files.move(target, toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(target, toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            relocate(dataOffset);
+
+            if (null != mapping) {
+                map();
+            }
+        } finally {
+            closeSources(sources);
+            Files.deleteIfExists(spill);
+            if (null != target) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    /**
+     * Create the file the archive is written to before it replaces the target, keeping the target permissions
+     *
+     */
+    private Path createTarget(final Path directory) throws IOException {
+        for (;;) {
+            Path target = directory.resolve("." + getName() + "." + Long.toHexString(RANDOM.nextLong()) + ".tmp");
+            try {
+                Files.newByteChannel(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+            } catch (FileAlreadyExistsException ex) {
+                continue;
+            }
+
+            if (exists()) {
+                try {
+                    Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(toPath()));
+                } catch (UnsupportedOperationException ex) {
+                    LOGGER.log(Level.FINE, "File permissions are not supported", ex);
                 }
-                pos.flush();
             }
 
-            out.write(stub);
-            out.write(manifest);
-            out.write(entryData.toByteArray());
-            out.flush();
+            return target;
+        }
+    }
+
+    private static FileChannel openSource(final Map<String, FileChannel> sources, final File source)
+            throws IOException {
+        String key = source.getAbsolutePath();
+        FileChannel channel = sources.get(key);
+        if (null == channel) {
+            channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            sources.put(key, channel);
+        }
+
+        return channel;
+    }
 
+    private static void closeSources(final Map<String, FileChannel> sources) throws IOException {
+        for (FileChannel channel : sources.values()) {
+            channel.close();
         }
+        sources.clear();
+    }
 
-        try (PharOutputStream phar = new PharOutputStream(new FileOutputStream(this))) {
-            phar.write(data.toByteArray());
-            phar.flush();
+    /**
+     * Copy a payload region of an archive
+     *
+     */
+    private static void copy(final FileChannel channel, final long offset, final long size, final OutputStream out,
+            final byte[] buffer, final MessageDigest md) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long position = offset;
+        long remaining = size;
+        while (remaining > 0) {
+            bb.clear();
+            bb.limit((int) Math.min(buffer.length, remaining));
+            int n = channel.read(bb, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of " + channel);
+            }
+            out.write(buffer, 0, n);
+            if (null != md) {
+                md.update(buffer, 0, n);
+            }
+            position += n;
+            remaining -= n;
+        }
+    }
 
-            signature.calcSignature(this);
-            phar.write(signature);
-            phar.flush();
-            phar.close();
+    /**
+     * Copy the next payload of the compressed entry data
+     *
+     */
+    private static void copy(final InputStream is, final long size, final OutputStream out, final byte[] buffer)
+            throws IOException {
+        long remaining = size;
+        while (remaining > 0) {
+            int n = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new EOFException("Unexpected end of compressed entry data");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
         }
     }
 
+    /**
+     * Compress entries on the executor and write them in order
+     *
+     */
+    private void writeParallel(final PharOutputStream out, final List<DataEntry> changed,
+            final Signature.Algorithm digestAlgorithm, final Executor executor, final int window) throws IOException {
+
+        Deque<CompressionTask> pending = new ArrayDeque<>();
+        long pendingSize = 0;
+        try {
+            for (DataEntry entry : changed) {
+                if (entry.getLength() > LARGE_ENTRY_SIZE) {
+                    while (!pending.isEmpty()) {
+                        pending.poll().writeTo(out);
+                    }
+                    pendingSize = 0;
+                    long size = entry.compress(out, digestAlgorithm, this);
+                    entry.getEntryManifest().setCompressedLength(size < 0 ? 0 : size);
+                    continue;
+                }
+
+                while (!pending.isEmpty()
+                        && (pending.size() >= window || pendingSize + entry.getLength() > MAX_PENDING_SIZE)) {
+                    CompressionTask done = pending.poll();
+                    done.writeTo(out);
+                    pendingSize -= done.size;
+                }
+
+                CompressionTask task = new CompressionTask(entry, digestAlgorithm, this);
+                pending.add(task);
+                pendingSize += task.size;
+                executor.execute(task);
+            }
+
+            while (!pending.isEmpty()) {
+                pending.poll().writeTo(out);
+            }
+        } finally {
+            for (CompressionTask task : pending) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    private static final class CompressionTask extends FutureTask<byte[]> {
+
+        private final DataEntry entry;
+
+        private final long size;
+
+        CompressionTask(final DataEntry entry, final Signature.Algorithm digestAlgorithm, final Phar archive) {
+            super(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    return entry.compress(data, digestAlgorithm, archive) < 0 ? null : data.toByteArray();
+                }
+            });
+            this.entry = entry;
+            this.size = entry.getLength();
+        }
+
+        void writeTo(final PharOutputStream out) throws IOException {
+            byte[] data;
+            try {
+                data = get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.toString());
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+
+            if (null != data) {
+                out.write(data);
+                entry.getEntryManifest().setCompressedLength(data.length);
+            } else {
+                entry.getEntryManifest().setCompressedLength(0);
+            }
+        }
+    }
+
+    Object getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Point the entries to their payloads in the written archive
+     *
+     */
+    private void relocate(long dataOffset) {
+        long position = dataOffset;
+        for (DataEntry entry : entries) {
+            entry.locate(this, position);
+            position += entry.getEntryManifest().getCompressedLength();
+        }
+        signatureOffset = position;
+        generation = new Object();
+    }
+
+    /**
+     * Extract the entries into a directory
+     *
+     * <p>Existing files are only overwritten with {@link StandardCopyOption#REPLACE_EXISTING}. The content of each
+     * entry is checked against its CRC32 and the modification time is restored from the manifest.</p>
+     *
+     */
+    public void extractTo(final Path directory, final CopyOption... options) throws IOException {
+        extractTo(directory, null, 1, options);
+    }
+
+    /**
+     * Extract the entries into a directory, decompressing on the given number of threads
+     *
+     */
+    public void extractTo(final Path directory, final int parallelism, final CopyOption... options)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(parallelism, 1));
+        try {
+            extractTo(directory, executor, parallelism, options);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Extract the entries into a directory, decompressing on the executor.
+     *
+     * <p>The archive is read once from start to end; at most twice the parallelism of compressed payloads are kept
+     * in memory while they wait to be decompressed.</p>
+     *
+     */
+    public void extractTo(final Path directory, final Executor executor, final int parallelism,
+            final CopyOption... options) throws IOException {
+        new Extractor(this, directory, options).extract(executor, parallelism);
+    }
+
+    /**
+     * Verify the archive file against its signature
+     *
+     */
+    public boolean verify() throws IOException {
+        try (FileChannel channel = FileChannel.open(toPath(), StandardOpenOption.READ)) {
+            return Signature.verify(channel);
+        }
+    }
+
+    /**
+     * Verify the entries against the payload digests taken when they were written
+     *
+     * @return names of the entries that have no digest or do not match it
+     */
+    public List<String> verifyEntries() throws IOException {
+        List<String> failed = new ArrayList<>();
+        for (DataEntry entry : entries) {
+            if (!entry.verifyDigest()) {
+                failed.add(entry.getName());
+            }
+        }
+
+        return failed;
+    }
+
     /**
      * Find PHAR entry by name
      *
@@ -291,16 +1089,35 @@ public class Phar extends File {
     public Entry findEntry(String name) {
 
         if (name.equals(Stub.DEFAULT_PATH)) {
-            return stub;
+            return getStub();
         }
 
-        for (DataEntry entry : entries) {
-            if (entry.getName().equals(name) || entry.getName().equals(name + "/")) {
-                return entry;
-            }
+        return getIndex().get(name);
+    }
+
+    /**
+     * Get the name index, kept up to date by the entry list
+     *
+     */
+    private EntryIndex<DataEntry> getIndex() {
+        return entryList().getIndex();
+    }
+
+    private EntryList<DataEntry> entryList() {
+        if (!(entries instanceof EntryList)) {
+            // Lists set from outside, such as by JAXB, are copied once so their changes are tracked
+            entries = new EntryList<>(entries);
         }
 
-        return null;
+        return (EntryList<DataEntry>) entries;
+    }
+
+    /**
+     * Set the entries, copying them into a list of the archive
+     *
+     */
+    public void setEntries(List<DataEntry> entries) {
+        this.entries = new EntryList<>(entries);
     }
 
     /**
@@ -321,14 +1138,17 @@ public class Phar extends File {
     /**
      * List PHAR entries filtered by name
      *
+     * <p>The stub comes first when it matches, followed by the matching entries in name order.</p>
+     *
      */
     public String[] list(String startsWith) {
-        List<String> list = new LinkedList<>();
+        List<String> list = new ArrayList<>();
 
-        for (String s : list()) {
-            if (s.startsWith(startsWith)) {
-                list.add(s);
-            }
+        if (Stub.DEFAULT_PATH.startsWith(startsWith)) {
+            list.add(Stub.DEFAULT_PATH);
+        }
+        for (DataEntry entry : getIndex().withPrefix(startsWith)) {
+            list.add(entry.getName());
         }
 
         return list.toArray(new String[list.size()]);
@@ -339,15 +1159,21 @@ public class Phar extends File {
      *
      */
     public void rm(final String name) {
-        for (Iterator<DataEntry> it = entries.iterator(); it.hasNext();) {
-            DataEntry entry = it.next();
-            if (entry.getName().equals(name)) {
-                manifest.getEntryManifest().remove(entry.getEntryManifest());
-                it.remove();
+        EntryList<DataEntry> list = entryList();
+        List<EntryManifest> manifests = manifest.getEntryManifest();
+        for (DataEntry entry : list.getIndex().named(name)) {
+            int position = list.position(entry);
+            list.remove(position);
+
+            // The manifests are normally in the same order as the entries
+            EntryManifest em = entry.getEntryManifest();
+            if (position < manifests.size() && manifests.get(position) == em) {
+                manifests.remove(position);
+            } else {
+                EntryList.drop(manifests, Collections.singleton(em));
             }
         }
-
-        manifest.setNumberOfFiles(entries.size());
+        manifest.setNumberOfFiles(list.size());
     }
 
     /**
@@ -355,15 +1181,18 @@ public class Phar extends File {
      *
      */
     public void rmdir(final String startsWith) {
-        for (Iterator<DataEntry> it = entries.iterator(); it.hasNext();) {
-            DataEntry entry = it.next();
-            if (entry.getName().startsWith(startsWith)) {
-                manifest.getEntryManifest().remove(entry.getEntryManifest());
-                it.remove();
-            }
+        EntryList<DataEntry> list = entryList();
+        List<DataEntry> removed = list.removePrefix(startsWith);
+        if (removed.isEmpty()) {
+            return;
         }
 
-        manifest.setNumberOfFiles(entries.size());
+        List<EntryManifest> manifests = new ArrayList<>(removed.size());
+        for (DataEntry entry : removed) {
+            manifests.add(entry.getEntryManifest());
+        }
+        EntryList.drop(manifest.getEntryManifest(), manifests);
+        manifest.setNumberOfFiles(list.size());
     }
 
     /**
@@ -371,14 +1200,13 @@ public class Phar extends File {
      *
      */
     public DataEntry mkdir(String folder) throws IOException {
-        if (folder.endsWith("/")) {
+        if (!folder.endsWith("/")) {
             folder = folder + "/";
         }
 
-        for (DataEntry e : entries) {
-            if (e.getName().startsWith(folder)) {
-                return e;
-            }
+        DataEntry existing = getIndex().firstWithPrefix(folder);
+        if (null != existing) {
+            return existing;
         }
 
         final String folderName = folder;
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe builder of a new PHAR archive
+ *
+ * <p>Any number of threads may add entries at the same time. Each entry is compressed on the thread that adds it and
+ * kept in memory, keyed by its name, until {@link #build()} writes all of them in name order in a single pass. The
+ * settings are meant to be made before the entries are added.</p>
+ *
+ */
+public final class PharBuilder {
+
+    private final File target;
+
+    private final ConcurrentSkipListMap<String, DataEntry> entries = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adding entries takes the read lock, building takes the write lock, so no entry is added once the entries to
+     * write were taken
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private boolean built = false;
+
+    @Getter
+    @Setter
+    private volatile Compression.Type compression = Compression.Type.NONE;
+
+    @Getter
+    @Setter
+    private volatile int compressionLevel = Codec.DEFAULT_LEVEL;
+
+    @Getter
+    @Setter
+    private volatile int compressionStrategy = Codec.DEFAULT_STRATEGY;
+
+    @Getter
+    @Setter
+    private volatile Signature.Algorithm signatureAlgorithm = Signature.Algorithm.SHA1;
+
+    @Getter
+    @Setter
+    private volatile String stub;
+
+    /**
+     * Alias of the archive; when not set, the name of the target file
+     */
+    @Getter
+    @Setter
+    private volatile String alias;
+
+    /**
+     * Timestamp for all entries, in seconds since the epoch; when not set, the time each entry is added
+     */
+    @Getter
+    @Setter
+    private volatile Integer timestamp;
+
+    public PharBuilder(final File target) {
+        this.target = target;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * Number of entries added so far
+     *
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public DataEntry add(final String name, final InputStream content) throws IOException {
+        return add(name, content, compression);
+    }
+
+    public DataEntry add(final String name, final byte[] content) throws IOException {
+        return add(name, new ByteArrayInputStream(content), compression);
+    }
+
+    /**
+     * Add a file under the given name, keeping its modification time unless a timestamp is set
+     *
+     */
+    public DataEntry add(final String name, final File file) throws IOException {
+        Integer time = timestamp;
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            return put(name, is, compression, null != time ? time : (int) (file.lastModified() / 1000));
+        }
+    }
+
+    /**
+     * Add content read to the end of the stream, compressing it on the calling thread
+     *
+     * @throws IllegalArgumentException when an entry of the same name was already added
+     */
+    public DataEntry add(final String name, final InputStream content, final Compression.Type type)
+            throws IOException {
+        Integer time = timestamp;
+        return put(name, content, type, null != time ? time : (int) (System.currentTimeMillis() / 1000));
+    }
+
+    private DataEntry put(final String name, final InputStream content, final Compression.Type type,
+            final int time) throws IOException {
+        // Refused before the content is read, unless another thread got there while it was compressed
+        check(name);
+        DataEntry entry = DataEntry.createFromStream(name, content, type, compressionLevel, compressionStrategy,
+                time);
+
+        boolean added = false;
+        lock.readLock().lock();
+        try {
+            check(name);
+            if (null != entries.putIfAbsent(name, entry)) {
+                throw new IllegalArgumentException("Duplicate entry: " + name);
+            }
+            added = true;
+        } finally {
+            lock.readLock().unlock();
+            if (!added) {
+                entry.release();
+            }
+        }
+
+        return entry;
+    }
+
+    private void check(final String name) {
+        lock.readLock().lock();
+        try {
+            if (built) {
+                throw new IllegalStateException("Archive " + target + " was already built");
+            }
+            if (entries.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate entry: " + name);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the archive with the entries in name order, replacing the target
+     *
+     * <p>Entries can no longer be added afterwards.</p>
+     *
+     */
+    public Phar build() throws IOException {
+        List<DataEntry> values;
+        lock.writeLock().lock();
+        try {
+            if (built) {
+                throw new IllegalStateException("Archive " + target + " was already built");
+            }
+            built = true;
+            values = new ArrayList<>(entries.values());
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Phar phar = Phar.empty(target);
+        if (null != stub) {
+            phar.setStub(stub);
+        }
+        if (null != alias) {
+            phar.getManifest().getAlias().setName(alias);
+        }
+        phar.setSignatureAlgorithm(signatureAlgorithm);
+
+        phar.add(values);
+        phar.write();
+
+        return phar;
+    }
+}
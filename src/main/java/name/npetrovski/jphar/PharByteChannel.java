@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only channel over the content of an entry
+ *
+ * <p>Entries stored uncompressed are read with positional reads of the shared archive channel of the file system, so
+ * any number of channels can read the same archive concurrently. Compressed entries are decompressed as they are read; moving backwards
+ * starts decompressing from the beginning again.</p>
+ *
+ */
+final class PharByteChannel implements SeekableByteChannel {
+
+    private final PharFileSystem fs;
+
+    private final DataEntry entry;
+
+    private final boolean stored;
+
+    private final long size;
+
+    private InputStream stream;
+
+    private long streamPosition;
+
+    private long position = 0;
+
+    private boolean open = true;
+
+    /**
+     * @param stored whether the entry is stored uncompressed in the archive of the file system
+     */
+    PharByteChannel(final PharFileSystem fs, final DataEntry entry, final boolean stored) {
+        this.fs = fs;
+        this.entry = entry;
+        this.stored = stored;
+        this.size = entry.getEntryManifest().getUncompressedLength();
+    }
+
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        int len = (int) Math.min(dst.remaining(), size - position);
+        int n;
+        if (stored) {
+            ByteBuffer view = dst.duplicate();
+            view.limit(view.position() + len);
+            n = fs.read(view, entry.getOffset() + position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+            dst.position(dst.position() + n);
+        } else {
+            n = readStream(dst, len);
+        }
+
+        position += n;
+        return n;
+    }
+
+    private int readStream(final ByteBuffer dst, final int len) throws IOException {
+        if (null == stream || streamPosition > position) {
+            if (null != stream) {
+                stream.close();
+            }
+            stream = fs.openEntry(entry);
+            streamPosition = 0;
+        }
+
+        while (streamPosition < position) {
+            long skipped = stream.skip(position - streamPosition);
+            if (skipped <= 0) {
+                if (stream.read() < 0) {
+                    throw new EOFException("Unexpected end of entry " + entry.getName());
+                }
+                skipped = 1;
+            }
+            streamPosition += skipped;
+        }
+
+        int n;
+        if (dst.hasArray()) {
+            n = stream.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+            if (n > 0) {
+                dst.position(dst.position() + n);
+            }
+        } else {
+            byte[] buffer = new byte[Math.min(len, 8192)];
+            n = stream.read(buffer, 0, buffer.length);
+            if (n > 0) {
+                dst.put(buffer, 0, n);
+            }
+        }
+        if (n < 0) {
+            throw new EOFException("Unexpected end of entry " + entry.getName());
+        }
+
+        streamPosition += n;
+        return n;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(final long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        open = false;
+        if (null != stream) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of parsed PHAR archives.
+ *
+ * <p>Archives are keyed by their canonical path and remembered together with the modification time and length of
+ * the file when they were parsed. A cached archive is reused only while both still match; a changed file is parsed
+ * again and replaces the stale entry. The least recently used archive is evicted once the cache holds more than
+ * {@link #getMaxSize()} archives.</p>
+ *
+ * <p>Cached archives are shared between all connections, so they are only handed out within the package; a
+ * {@link PharURLConnection} gives its callers archives and entries of their own.</p>
+ *
+ */
+public class PharCache {
+
+    static final int DEFAULT_MAX_SIZE = 16;
+
+    private static final PharCache DEFAULT = new PharCache(DEFAULT_MAX_SIZE);
+
+    private final Map<File, Cached> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Phar.Option[] options;
+
+    private int maxSize;
+
+    private ContentCache contentCache;
+
+    private static final class Cached {
+
+        private final Phar phar;
+
+        private final long lastModified;
+
+        private final long length;
+
+        Cached(final Phar phar, final long lastModified, final long length) {
+            this.phar = phar;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        boolean isCurrent(final long lastModified, final long length) {
+            return this.lastModified == lastModified && this.length == length;
+        }
+    }
+
+    public PharCache(final int maxSize, final Phar.Option... options) {
+        this.maxSize = maxSize;
+        this.options = options;
+    }
+
+    /**
+     * Get the process-wide cache shared by PHAR URL connections
+     *
+     */
+    public static PharCache getDefault() {
+        return DEFAULT;
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Cache the decompressed entry contents of the archives parsed from now on
+     *
+     */
+    public synchronized void setContentCache(final ContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    /**
+     * Get parsed PHAR archive, reading it only when it is not cached or the file has changed
+     *
+     */
+    Phar get(final File file) {
+        File key = canonical(file);
+        long lastModified = key.lastModified();
+        long length = key.length();
+
+        if (!key.isFile()) {
+            invalidate(key);
+            return new Phar(key, options);
+        }
+
+        synchronized (this) {
+            Cached cached = cache.get(key);
+            if (null != cached && cached.isCurrent(lastModified, length)) {
+                return cached.phar;
+            }
+        }
+
+        // Parse outside of the lock, so a large archive does not hold up lookups of the others
+        Phar phar = new Phar(key, options);
+
+        synchronized (this) {
+            phar.setContentCache(contentCache);
+            cache.put(key, new Cached(phar, lastModified, length));
+            evict();
+        }
+
+        return phar;
+    }
+
+    Phar get(final String pathname) {
+        return get(new File(pathname));
+    }
+
+    /**
+     * Drop the cached archive for the file
+     *
+     */
+    public synchronized void invalidate(final File file) {
+        cache.remove(canonical(file));
+    }
+
+    /**
+     * Drop all cached archives
+     *
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    private void evict() {
+        while (cache.size() > Math.max(maxSize, 0)) {
+            File eldest = cache.keySet().iterator().next();
+            cache.remove(eldest);
+        }
+    }
+
+    private static File canonical(final File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException ex) {
+            return file.getAbsoluteFile();
+        }
+    }
+}
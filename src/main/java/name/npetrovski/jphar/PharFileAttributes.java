@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attributes of a path in a PHAR file system, taken from the entry manifest
+ *
+ * <p>Directories that have no entry of their own take the times of the archive file.</p>
+ *
+ */
+public final class PharFileAttributes implements BasicFileAttributes {
+
+    static final String[] BASIC = {
+        "lastModifiedTime", "lastAccessTime", "creationTime", "size",
+        "isRegularFile", "isDirectory", "isSymbolicLink", "isOther", "fileKey"
+    };
+
+    static final String[] PHAR = {"compressedSize", "crc32", "compression"};
+
+    private final DataEntry entry;
+
+    private final boolean directory;
+
+    private final FileTime time;
+
+    PharFileAttributes(final DataEntry entry, final boolean directory, final FileTime archiveTime) {
+        this.entry = entry;
+        this.directory = directory;
+
+        Integer timestamp = null != entry ? entry.getEntryManifest().getTimestamp() : null;
+        this.time = null != timestamp && timestamp != 0
+                ? FileTime.from(timestamp & 0xFFFFFFFFL, TimeUnit.SECONDS) : archiveTime;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return time;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return time;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return time;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    /**
+     * Uncompressed size of the entry
+     *
+     */
+    @Override
+    public long size() {
+        return directory || null == entry ? 0 : entry.getEntryManifest().getUncompressedLength();
+    }
+
+    @Override
+    public Object fileKey() {
+        return null;
+    }
+
+    public long compressedSize() {
+        return directory || null == entry ? 0 : entry.getEntryManifest().getCompressedLength();
+    }
+
+    public int crc32() {
+        return null == entry ? 0 : entry.getEntryManifest().getCRC32();
+    }
+
+    public Compression.Type compression() {
+        return null == entry ? Compression.Type.NONE : entry.getEntryManifest().getCompression().getType();
+    }
+
+    /**
+     * Read attributes by name, as in "basic:size,lastModifiedTime" or "phar:*"
+     *
+     */
+    Map<String, Object> toMap(final String attributes) {
+        int colon = attributes.indexOf(':');
+        String view = colon < 0 ? "basic" : attributes.substring(0, colon);
+        String names = colon < 0 ? attributes : attributes.substring(colon + 1);
+
+        if (!view.equals("basic") && !view.equals("phar")) {
+            throw new UnsupportedOperationException("View '" + view + "' not available");
+        }
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (String name : names.split(",")) {
+            if (name.equals("*")) {
+                for (String n : BASIC) {
+                    map.put(n, get(n));
+                }
+                if (view.equals("phar")) {
+                    for (String n : PHAR) {
+                        map.put(n, get(n));
+                    }
+                }
+            } else {
+                Object value = get(name);
+                if (null == value && !name.equals("fileKey")
+                        || view.equals("basic") && contains(PHAR, name)) {
+                    throw new IllegalArgumentException("'" + name + "' not recognized");
+                }
+                map.put(name, value);
+            }
+        }
+
+        return map;
+    }
+
+    private Object get(final String name) {
+        switch (name) {
+            case "lastModifiedTime":
+                return lastModifiedTime();
+            case "lastAccessTime":
+                return lastAccessTime();
+            case "creationTime":
+                return creationTime();
+            case "size":
+                return size();
+            case "isRegularFile":
+                return isRegularFile();
+            case "isDirectory":
+                return isDirectory();
+            case "isSymbolicLink":
+                return isSymbolicLink();
+            case "isOther":
+                return isOther();
+            case "compressedSize":
+                return compressedSize();
+            case "crc32":
+                return crc32();
+            case "compression":
+                return compression();
+            default:
+                return null;
+        }
+    }
+
+    private static boolean contains(final String[] names, final String name) {
+        for (String n : names) {
+            if (n.equals(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
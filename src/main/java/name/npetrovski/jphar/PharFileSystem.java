@@ -0,0 +1,584 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only file system over the entries of a PHAR archive
+ *
+ * <p>The archive is parsed once when the file system is opened and its directory tree is built from the entry
+ * names. Entry contents are read through a single channel of the archive that is shared by all readers, with
+ * positional reads. A reader interrupted in the middle of a read closes that channel; it is then reopened for the
+ * others.</p>
+ *
+ */
+final class PharFileSystem extends FileSystem implements RegionInputStream.Source {
+
+    private static final Set<String> VIEWS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("basic",
+            "phar")));
+
+    private final PharFileSystemProvider provider;
+
+    private final Path archive;
+
+    private final Phar phar;
+
+    private final Object fileKey;
+
+    private final Object lock = new Object();
+
+    private volatile FileChannel channel;
+
+    private final FileTime archiveTime;
+
+    private final Map<String, DataEntry> files = new HashMap<>();
+
+    private final Map<String, List<String>> directories = new HashMap<>();
+
+    private volatile boolean open = true;
+
+    PharFileSystem(final PharFileSystemProvider provider, final Path archive, final Phar phar) throws IOException {
+        this.provider = provider;
+        this.archive = archive;
+        this.phar = phar;
+        this.channel = FileChannel.open(archive, StandardOpenOption.READ);
+        this.fileKey = Files.readAttributes(archive, BasicFileAttributes.class).fileKey();
+        this.archiveTime = Files.getLastModifiedTime(archive);
+
+        Map<String, Set<String>> tree = new HashMap<>();
+        tree.put("", new TreeSet<String>());
+        for (DataEntry entry : phar.getEntries()) {
+            String name = new PharPath(this, "/" + entry.getName()).getEntryName();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (entry.isDirectory()) {
+                addDirectory(tree, name);
+            } else if (!files.containsKey(name)) {
+                files.put(name, entry);
+                addDirectory(tree, parent(name));
+                tree.get(parent(name)).add(name.substring(name.lastIndexOf('/') + 1));
+            }
+        }
+
+        for (Map.Entry<String, Set<String>> e : tree.entrySet()) {
+            directories.put(e.getKey(), Collections.unmodifiableList(new ArrayList<>(e.getValue())));
+        }
+    }
+
+    private static void addDirectory(final Map<String, Set<String>> tree, final String name) {
+        if (tree.containsKey(name)) {
+            return;
+        }
+
+        String parent = parent(name);
+        addDirectory(tree, parent);
+        tree.put(name, new TreeSet<String>());
+        tree.get(parent).add(name.substring(parent.isEmpty() ? 0 : parent.length() + 1));
+    }
+
+    private static String parent(final String name) {
+        int slash = name.lastIndexOf('/');
+        return slash < 0 ? "" : name.substring(0, slash);
+    }
+
+    PharFileSystemProvider getProvider() {
+        return provider;
+    }
+
+    Path getArchive() {
+        return archive;
+    }
+
+    Phar getPhar() {
+        return phar;
+    }
+
+    @Override
+    public PharFileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (!open) {
+                return;
+            }
+            open = false;
+        }
+        provider.removeFileSystem(archive, this);
+        channel.close();
+    }
+
+    /**
+     * Read archive bytes at the position through the shared channel
+     *
+     */
+    @Override
+    public int read(final ByteBuffer dst, final long position) throws IOException {
+        for (;;) {
+            FileChannel current = channel;
+            try {
+                return current.read(dst, position);
+            } catch (ClosedByInterruptException ex) {
+                // This reader was interrupted; the others go on with a new channel
+                reopen(current);
+                throw ex;
+            } catch (ClosedChannelException ex) {
+                reopen(current);
+            }
+        }
+    }
+
+    private void reopen(final FileChannel broken) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            if (channel != broken) {
+                return;
+            }
+
+            FileChannel reopened = FileChannel.open(archive, StandardOpenOption.READ);
+            Object key = Files.readAttributes(archive, BasicFileAttributes.class).fileKey();
+            if (null == fileKey || !fileKey.equals(key)) {
+                reopened.close();
+                throw new IOException("Archive " + archive + " was replaced while its channel was closed");
+            }
+            channel = reopened;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path>singletonList(new PharPath(this, "/"));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.<FileStore>singletonList(new PharFileStore());
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return VIEWS;
+    }
+
+    @Override
+    public PharPath getPath(final String first, final String... more) {
+        StringBuilder sb = new StringBuilder(first);
+        for (String name : more) {
+            if (!name.isEmpty()) {
+                if (sb.length() > 0) {
+                    sb.append('/');
+                }
+                sb.append(name);
+            }
+        }
+
+        return new PharPath(this, sb.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(final String syntaxAndPattern) {
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Syntax and pattern expected: " + syntaxAndPattern);
+        }
+
+        String syntax = syntaxAndPattern.substring(0, colon);
+        String pattern = syntaxAndPattern.substring(colon + 1);
+        final Pattern regex;
+        if (syntax.equalsIgnoreCase("glob")) {
+            regex = Pattern.compile(toRegex(pattern));
+        } else if (syntax.equalsIgnoreCase("regex")) {
+            regex = Pattern.compile(pattern);
+        } else {
+            throw new UnsupportedOperationException("Syntax '" + syntax + "' not recognized");
+        }
+
+        return new PathMatcher() {
+            @Override
+            public boolean matches(final Path path) {
+                return regex.matcher(path.toString()).matches();
+            }
+        };
+    }
+
+    /**
+     * Translate a glob, where "*" does not cross directories and "**" does
+     *
+     */
+    static String toRegex(final String glob) {
+        StringBuilder regex = new StringBuilder("^");
+        boolean group = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (++i < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    }
+                    break;
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    regex.append("[[^/]&&[");
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                        regex.append('^');
+                        i++;
+                    }
+                    for (i++; i < glob.length() && glob.charAt(i) != ']'; i++) {
+                        char r = glob.charAt(i);
+                        if (r == '[' || r == '\\' || r == '&' || r == '^') {
+                            regex.append('\\');
+                        }
+                        regex.append(r);
+                    }
+                    regex.append("]]");
+                    break;
+                case '{':
+                    regex.append("(?:");
+                    group = true;
+                    break;
+                case '}':
+                    regex.append(group ? ")" : "\\}");
+                    group = false;
+                    break;
+                case ',':
+                    regex.append(group ? "|" : ",");
+                    break;
+                default:
+                    if (".^$+()|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+
+        return regex.append('$').toString();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException();
+    }
+
+    void ensureOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    boolean exists(final PharPath path) {
+        String name = path.getEntryName();
+        return directories.containsKey(name) || files.containsKey(name);
+    }
+
+    PharFileAttributes getAttributes(final PharPath path) throws IOException {
+        ensureOpen();
+        String name = path.getEntryName();
+        if (directories.containsKey(name)) {
+            return new PharFileAttributes((DataEntry) phar.findEntry(name + "/"), true, archiveTime);
+        }
+
+        DataEntry entry = files.get(name);
+        if (null == entry) {
+            throw new NoSuchFileException(path.toString());
+        }
+
+        return new PharFileAttributes(entry, false, archiveTime);
+    }
+
+    SeekableByteChannel newByteChannel(final PharPath path) throws IOException {
+        DataEntry entry = file(path);
+        boolean stored = isStored(entry) && entry.getPayloadCompression() == Compression.Type.NONE;
+        return new PharByteChannel(this, entry, stored);
+    }
+
+    InputStream newInputStream(final PharPath path) throws IOException {
+        return openEntry(file(path));
+    }
+
+    /**
+     * Stream of the entry content, read through the shared channel unless the archive caches decompressed contents
+     *
+     */
+    InputStream openEntry(final DataEntry entry) throws IOException {
+        if (isStored(entry) && null == phar.getContentCache()) {
+            long size = entry.getPayloadSize();
+            return size > 0 ? entry.getInputStream(RegionInputStream.of(this, entry.getOffset(), size))
+                    : new ByteArrayInputStream(new byte[0]);
+        }
+
+        InputStream is = entry.getInputStream();
+        return null != is ? is : new ByteArrayInputStream(new byte[0]);
+    }
+
+    /**
+     * Whether the payload of the entry is in the archive of this file system
+     *
+     */
+    private boolean isStored(final DataEntry entry) {
+        return null != entry.getOffset() && entry.getSource() == phar;
+    }
+
+    private DataEntry file(final PharPath path) throws IOException {
+        ensureOpen();
+        String name = path.getEntryName();
+        DataEntry entry = files.get(name);
+        if (null == entry) {
+            if (directories.containsKey(name)) {
+                throw new IOException(path + " is a directory");
+            }
+            throw new NoSuchFileException(path.toString());
+        }
+        return entry;
+    }
+
+    DirectoryStream<Path> newDirectoryStream(final PharPath dir, final DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        ensureOpen();
+        final List<String> children = directories.get(dir.getEntryName());
+        if (null == children) {
+            if (files.containsKey(dir.getEntryName())) {
+                throw new NotDirectoryException(dir.toString());
+            }
+            throw new NoSuchFileException(dir.toString());
+        }
+
+        return new DirectoryStream<Path>() {
+
+            private boolean used = false;
+
+            private volatile boolean closed = false;
+
+            @Override
+            public synchronized Iterator<Path> iterator() {
+                if (closed || used) {
+                    throw new IllegalStateException(closed ? "Directory stream is closed" : "Iterator already obtained");
+                }
+                used = true;
+
+                final Iterator<String> names = children.iterator();
+                return new Iterator<Path>() {
+
+                    private Path next;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (null == next && !closed && names.hasNext()) {
+                            Path child = dir.resolve(names.next());
+                            try {
+                                if (null == filter || filter.accept(child)) {
+                                    next = child;
+                                }
+                            } catch (IOException ex) {
+                                throw new DirectoryIteratorException(ex);
+                            }
+                        }
+                        return null != next;
+                    }
+
+                    @Override
+                    public Path next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Path result = next;
+                        next = null;
+                        return result;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                closed = true;
+            }
+        };
+    }
+
+    /**
+     * The archive as the single read-only store of the file system
+     *
+     */
+    private final class PharFileStore extends FileStore {
+
+        @Override
+        public String name() {
+            return archive.toString();
+        }
+
+        @Override
+        public String type() {
+            return "pharfs";
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        @Override
+        public long getTotalSpace() throws IOException {
+            return Files.size(archive);
+        }
+
+        @Override
+        public long getUsableSpace() {
+            return 0;
+        }
+
+        @Override
+        public long getUnallocatedSpace() {
+            return 0;
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(final Class<? extends FileAttributeView> type) {
+            return type == BasicFileAttributeView.class;
+        }
+
+        @Override
+        public boolean supportsFileAttributeView(final String name) {
+            return VIEWS.contains(name);
+        }
+
+        @Override
+        public <V extends FileStoreAttributeView> V getFileStoreAttributeView(final Class<V> type) {
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(final String attribute) throws IOException {
+            switch (attribute) {
+                case "totalSpace":
+                    return getTotalSpace();
+                case "usableSpace":
+                    return getUsableSpace();
+                case "unallocatedSpace":
+                    return getUnallocatedSpace();
+                default:
+                    throw new UnsupportedOperationException("Attribute '" + attribute + "' not supported");
+            }
+        }
+    }
+
+    /**
+     * Attribute view answering from the manifest; times cannot be changed
+     *
+     */
+    BasicFileAttributeView newAttributeView(final PharPath path) {
+        return new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return getAttributes(path);
+            }
+
+            @Override
+            public void setTimes(final FileTime lastModifiedTime, final FileTime lastAccessTime,
+                    final FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+}
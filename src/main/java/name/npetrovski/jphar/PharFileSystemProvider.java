@@ -0,0 +1,318 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only file system provider for PHAR archives, registered for the "phar" scheme
+ *
+ * <p>URIs take the form {@code phar:file:///path/to/archive.phar!/entry/name}. Each archive is parsed once, when its
+ * file system is created with {@link FileSystems#newFileSystem(URI, Map)}; the environment may ask for
+ * {@link Phar.Option}s by their names, as in {@code MEMORY_MAPPED=true}, or hand over an already parsed archive
+ * under the key {@code phar}.</p>
+ *
+ */
+public class PharFileSystemProvider extends FileSystemProvider {
+
+    private final Map<Path, PharFileSystem> filesystems = new HashMap<>();
+
+    @Override
+    public String getScheme() {
+        return "phar";
+    }
+
+    @Override
+    public FileSystem newFileSystem(final URI uri, final Map<String, ?> env) throws IOException {
+        return newFileSystem(archiveOf(uri), env, true);
+    }
+
+    /**
+     * Open the archive as a file system; only files named *.phar are taken
+     *
+     */
+    @Override
+    public FileSystem newFileSystem(final Path path, final Map<String, ?> env) throws IOException {
+        if (path.getFileSystem() != FileSystems.getDefault()
+                || !path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".phar")) {
+            throw new UnsupportedOperationException();
+        }
+
+        return newFileSystem(path, env, false);
+    }
+
+    private FileSystem newFileSystem(final Path path, final Map<String, ?> env, final boolean registered)
+            throws IOException {
+        Path archive = path.toRealPath();
+
+        Phar phar = null != env && env.get("phar") instanceof Phar ? (Phar) env.get("phar") : null;
+        if (null == phar) {
+            List<Phar.Option> options = new ArrayList<>();
+            for (Phar.Option option : Phar.Option.values()) {
+                Object value = null != env ? env.get(option.name()) : null;
+                if (Boolean.TRUE.equals(value) || "true".equals(value)) {
+                    options.add(option);
+                }
+            }
+            phar = new Phar(archive.toFile(), options.toArray(new Phar.Option[options.size()]));
+        }
+
+        if (!registered) {
+            return new PharFileSystem(this, archive, phar);
+        }
+
+        synchronized (filesystems) {
+            if (filesystems.containsKey(archive)) {
+                throw new FileSystemAlreadyExistsException(archive.toString());
+            }
+            PharFileSystem fs = new PharFileSystem(this, archive, phar);
+            filesystems.put(archive, fs);
+            return fs;
+        }
+    }
+
+    @Override
+    public FileSystem getFileSystem(final URI uri) {
+        PharFileSystem fs;
+        synchronized (filesystems) {
+            fs = filesystems.get(realPath(archiveOf(uri)));
+        }
+        if (null == fs) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+
+        return fs;
+    }
+
+    @Override
+    public Path getPath(final URI uri) {
+        String spec = uri.getSchemeSpecificPart();
+        int bang = spec.indexOf("!/");
+        if (bang < 0) {
+            throw new IllegalArgumentException(uri + ": No `!/' in spec.");
+        }
+
+        return getFileSystem(uri).getPath(spec.substring(bang + 1));
+    }
+
+    void removeFileSystem(final Path archive, final PharFileSystem fs) {
+        synchronized (filesystems) {
+            if (filesystems.get(archive) == fs) {
+                filesystems.remove(archive);
+            }
+        }
+    }
+
+    URI toUri(final PharFileSystem fs, final String path) {
+        URI archive = fs.getArchive().toUri();
+        try {
+            return new URI(getScheme(), archive.getScheme() + ":" + archive.getSchemeSpecificPart() + "!" + path,
+                    null);
+        } catch (URISyntaxException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static Path archiveOf(final URI uri) {
+        String spec = uri.getSchemeSpecificPart();
+        int bang = spec.indexOf("!/");
+        if (bang >= 0) {
+            spec = spec.substring(0, bang);
+        }
+
+        int colon = spec.indexOf(':');
+        try {
+            return Paths.get(colon < 0 ? new URI("file", spec, null) : new URI(spec.substring(0, colon),
+                    spec.substring(colon + 1), null));
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    private static Path realPath(final Path path) {
+        try {
+            return path.toRealPath();
+        } catch (IOException ex) {
+            return path.toAbsolutePath().normalize();
+        }
+    }
+
+    private static PharFileSystem fileSystem(final Path path) {
+        PharFileSystem fs = PharPath.of(path).getFileSystem();
+        fs.ensureOpen();
+        return fs;
+    }
+
+    private static void checkReadOnly(final Set<? extends OpenOption> options) {
+        for (OpenOption option : options) {
+            if (option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND
+                    || option == StandardOpenOption.CREATE || option == StandardOpenOption.CREATE_NEW
+                    || option == StandardOpenOption.DELETE_ON_CLOSE || option == StandardOpenOption.TRUNCATE_EXISTING) {
+                throw new ReadOnlyFileSystemException();
+            }
+        }
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(final Path path, final Set<? extends OpenOption> options,
+            final FileAttribute<?>... attrs) throws IOException {
+        checkReadOnly(options);
+        return fileSystem(path).newByteChannel(PharPath.of(path));
+    }
+
+    /**
+     * Stream of the entry content, served through the content cache of the archive when it has one
+     *
+     */
+    @Override
+    public InputStream newInputStream(final Path path, final OpenOption... options) throws IOException {
+        checkReadOnly(new HashSet<>(Arrays.asList(options)));
+        return fileSystem(path).newInputStream(PharPath.of(path));
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(final Path dir, final DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        return fileSystem(dir).newDirectoryStream(PharPath.of(dir), filter);
+    }
+
+    @Override
+    public void createDirectory(final Path dir, final FileAttribute<?>... attrs) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(final Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(final Path source, final Path target, final CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(final Path source, final Path target, final CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(final Path path, final Path path2) throws IOException {
+        if (path.equals(path2)) {
+            return true;
+        }
+        if (!(path instanceof PharPath) || !(path2 instanceof PharPath)
+                || PharPath.of(path).getFileSystem() != PharPath.of(path2).getFileSystem()) {
+            return false;
+        }
+
+        return path.toRealPath().equals(path2.toRealPath());
+    }
+
+    @Override
+    public boolean isHidden(final Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(final Path path) {
+        return fileSystem(path).getFileStores().iterator().next();
+    }
+
+    @Override
+    public void checkAccess(final Path path, final AccessMode... modes) throws IOException {
+        fileSystem(path).getAttributes(PharPath.of(path));
+        for (AccessMode mode : modes) {
+            if (mode == AccessMode.WRITE || mode == AccessMode.EXECUTE) {
+                throw new AccessDeniedException(path.toString());
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(final Path path, final Class<V> type,
+            final LinkOption... options) {
+        if (type == BasicFileAttributeView.class) {
+            return (V) fileSystem(path).newAttributeView(PharPath.of(path));
+        }
+
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(final Path path, final Class<A> type,
+            final LinkOption... options) throws IOException {
+        if (type == BasicFileAttributes.class || type == PharFileAttributes.class) {
+            return (A) fileSystem(path).getAttributes(PharPath.of(path));
+        }
+
+        throw new UnsupportedOperationException("Attributes of type " + type.getName() + " not supported");
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(final Path path, final String attributes, final LinkOption... options)
+            throws IOException {
+        return fileSystem(path).getAttributes(PharPath.of(path)).toMap(attributes);
+    }
+
+    @Override
+    public void setAttribute(final Path path, final String attribute, final Object value,
+            final LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+}
@@ -27,13 +27,37 @@ import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Buffered little-endian reader of the PHAR binary format.
+ *
+ * <p>The stream keeps its own reusable buffer filled in bulk from the underlying stream, so integers and names are
+ * decoded straight from memory. Instances are not thread-safe.</p>
+ *
+ */
 public class PharInputStream extends FilterInputStream {
 
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private CharBuffer chars = CharBuffer.allocate(256);
+
     private long pos = 0;
 
     public PharInputStream(InputStream input) throws IOException {
         super(input);
+        buffer.limit(0);
     }
 
     /**
@@ -44,45 +68,169 @@ public class PharInputStream extends FilterInputStream {
      * approximately three months. Applications should account for this possibility in their design.</p>
      *
      */
-    public synchronized long getPosition() {
+    public long getPosition() {
         return pos;
     }
 
     @Override
     public long skip(long n) throws IOException {
-        pos += n;
-        return super.skip(n);
+        long skipped = Math.min(Math.max(n, 0), buffer.remaining());
+        buffer.position(buffer.position() + (int) skipped);
+
+        while (skipped < n) {
+            long s = in.skip(n - skipped);
+            if (s <= 0) {
+                // Some streams may skip short; fall back to reading to tell a pause from the end of stream
+                if (in.read() < 0) {
+                    break;
+                }
+                s = 1;
+            }
+            skipped += s;
+        }
+        pos += skipped;
+        return skipped;
     }
-    
+
     @Override
-    public synchronized int read()
-            throws IOException {
-        int b = super.read();
-        if (b >= 0) {
-            pos += 1;
+    public int read() throws IOException {
+        if (!fill(1)) {
+            return -1;
         }
-        return b;
+        pos += 1;
+        return buffer.get() & 0xFF;
     }
 
     @Override
-    public synchronized int read(byte[] b, int off, int len)
-            throws IOException {
-        int n = super.read(b, off, len);
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        int n;
+        if (buffer.hasRemaining()) {
+            n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+        } else if (len >= BUFFER_SIZE) {
+            // Large reads bypass the buffer
+            n = in.read(b, off, len);
+        } else if (fill(1)) {
+            n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+        } else {
+            n = -1;
+        }
+
         if (n > 0) {
             pos += n;
         }
         return n;
     }
 
+    @Override
+    public int available() throws IOException {
+        return buffer.remaining() + in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
     protected int readRInt() throws IOException {
-        int ch1 = this.read();
-        int ch2 = this.read();
-        int ch3 = this.read();
-        int ch4 = this.read();
-        if ((ch1 | ch2 | ch3 | ch4) < 0) {
+        if (!fill(4)) {
             throw new EOFException();
         }
+        pos += 4;
+        return buffer.getInt();
+    }
+
+    /**
+     * Read the given number of bytes as they are
+     *
+     */
+    protected byte[] readBytes(int len) throws IOException {
+        byte[] data = new byte[len];
+        for (int n = 0; n < len;) {
+            int count = read(data, n, len - n);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            n += count;
+        }
+
+        return data;
+    }
+
+    /**
+     * Read UTF-8 encoded string of the given byte length
+     *
+     */
+    protected String readString(int len) throws IOException {
+        if (len <= BUFFER_SIZE) {
+            if (!fill(len)) {
+                throw new EOFException();
+            }
+
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + len);
+            String result = decode(buffer);
+            buffer.limit(limit);
+            pos += len;
+
+            return result;
+        }
+
+        return decode(ByteBuffer.wrap(readBytes(len)));
+    }
+
+    private String decode(ByteBuffer bytes) {
+        // UTF-8 never yields more chars than bytes
+        if (chars.capacity() < bytes.remaining()) {
+            chars = CharBuffer.allocate(bytes.remaining());
+        }
+        chars.clear();
+
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+
+        return chars.toString();
+    }
+
+    /**
+     * Make at least the given number of bytes available in the buffer
+     *
+     * @return false when the stream ends first
+     */
+    private boolean fill(int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return true;
+        }
+
+        buffer.compact();
+        try {
+            while (buffer.position() < n) {
+                int count = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (count < 0) {
+                    break;
+                }
+                buffer.position(buffer.position() + count);
+            }
+        } finally {
+            buffer.flip();
+        }
 
-        return ((ch4 << 24) + (ch3 << 16) + (ch2 << 8) + (ch1));
+        return buffer.remaining() >= n;
     }
 }
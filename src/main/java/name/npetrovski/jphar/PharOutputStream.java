@@ -40,6 +40,11 @@ public final class PharOutputStream extends FilterOutputStream {
         this.out.write((i >>> 24) & 0xFF);
     }
 
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        this.out.write(b, off, len);
+    }
+
     public void write(final Writable writable) throws IOException {
         if (writable == null) {
             throw new NullPointerException("Writable cannot be null");
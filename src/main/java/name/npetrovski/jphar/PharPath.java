@@ -0,0 +1,418 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Path of an entry in a PHAR file system
+ *
+ * <p>Paths use "/" as the separator; absolute paths start with it and the root is "/". A path is kept in its
+ * textual form, with repeated and trailing separators removed.</p>
+ *
+ */
+final class PharPath implements Path {
+
+    private final PharFileSystem fs;
+
+    private final String path;
+
+    private volatile String[] names;
+
+    PharPath(final PharFileSystem fs, final String path) {
+        this.fs = fs;
+        this.path = clean(path);
+    }
+
+    private static String clean(final String path) {
+        StringBuilder sb = new StringBuilder(path.length());
+        char previous = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\u0000') {
+                throw new InvalidPathException(path, "Nul character not allowed");
+            }
+            if (c != '/' || previous != '/') {
+                sb.append(c);
+            }
+            previous = c;
+        }
+        if (sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+            sb.setLength(sb.length() - 1);
+        }
+
+        return sb.toString();
+    }
+
+    private String[] names() {
+        String[] n = names;
+        if (null == n) {
+            String relative = isAbsolute() ? path.substring(1) : path;
+            n = relative.isEmpty() ? (isAbsolute() ? new String[0] : new String[] {""}) : relative.split("/");
+            names = n;
+        }
+
+        return n;
+    }
+
+    /**
+     * Name of the entry in the archive, without the leading separator
+     *
+     */
+    String getEntryName() {
+        return toAbsolutePath().normalize().toString().substring(1);
+    }
+
+    @Override
+    public PharFileSystem getFileSystem() {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot() {
+        return isAbsolute() ? new PharPath(fs, "/") : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        String[] n = names();
+        if (n.length == 0) {
+            return null;
+        }
+        if (n.length == 1 && !isAbsolute()) {
+            return this;
+        }
+
+        return new PharPath(fs, n[n.length - 1]);
+    }
+
+    @Override
+    public Path getParent() {
+        String[] n = names();
+        if (n.length == 0 || (n.length == 1 && !isAbsolute())) {
+            return null;
+        }
+
+        int slash = path.lastIndexOf('/');
+        return new PharPath(fs, slash == 0 ? "/" : path.substring(0, slash));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names().length;
+    }
+
+    @Override
+    public Path getName(final int index) {
+        String[] n = names();
+        if (index < 0 || index >= n.length) {
+            throw new IllegalArgumentException();
+        }
+
+        return new PharPath(fs, n[index]);
+    }
+
+    @Override
+    public Path subpath(final int beginIndex, final int endIndex) {
+        String[] n = names();
+        if (beginIndex < 0 || beginIndex >= n.length || endIndex > n.length || beginIndex >= endIndex) {
+            throw new IllegalArgumentException();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = beginIndex; i < endIndex; i++) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(n[i]);
+        }
+
+        return new PharPath(fs, sb.toString());
+    }
+
+    @Override
+    public boolean startsWith(final Path other) {
+        if (!(other instanceof PharPath) || ((PharPath) other).fs != fs
+                || isAbsolute() != other.isAbsolute()) {
+            return false;
+        }
+
+        String[] n = names();
+        String[] o = ((PharPath) other).names();
+        if (o.length > n.length || (o.length == 1 && o[0].isEmpty() && !path.isEmpty())) {
+            return false;
+        }
+        for (int i = 0; i < o.length; i++) {
+            if (!o[i].equals(n[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(final String other) {
+        return startsWith(fs.getPath(other));
+    }
+
+    @Override
+    public boolean endsWith(final Path other) {
+        if (!(other instanceof PharPath) || ((PharPath) other).fs != fs) {
+            return false;
+        }
+        if (other.isAbsolute()) {
+            return equals(other);
+        }
+
+        String[] n = names();
+        String[] o = ((PharPath) other).names();
+        if (o.length > n.length) {
+            return false;
+        }
+        for (int i = 1; i <= o.length; i++) {
+            if (!o[o.length - i].equals(n[n.length - i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(final String other) {
+        return endsWith(fs.getPath(other));
+    }
+
+    @Override
+    public Path normalize() {
+        List<String> kept = new ArrayList<>();
+        for (String name : names()) {
+            if (name.equals(".") || name.isEmpty()) {
+                continue;
+            }
+            if (name.equals("..")) {
+                if (!kept.isEmpty() && !kept.get(kept.size() - 1).equals("..")) {
+                    kept.remove(kept.size() - 1);
+                    continue;
+                }
+                if (isAbsolute()) {
+                    continue;
+                }
+            }
+            kept.add(name);
+        }
+
+        StringBuilder sb = new StringBuilder(isAbsolute() ? "/" : "");
+        for (String name : kept) {
+            if (sb.length() > 1 || (sb.length() == 1 && !isAbsolute())) {
+                sb.append('/');
+            }
+            sb.append(name);
+        }
+
+        return new PharPath(fs, sb.toString());
+    }
+
+    @Override
+    public Path resolve(final Path other) {
+        PharPath o = check(other);
+        if (o.isAbsolute()) {
+            return o;
+        }
+        if (o.path.isEmpty()) {
+            return this;
+        }
+        if (path.isEmpty()) {
+            return o;
+        }
+
+        return new PharPath(fs, path + "/" + o.path);
+    }
+
+    @Override
+    public Path resolve(final String other) {
+        return resolve(fs.getPath(other));
+    }
+
+    @Override
+    public Path resolveSibling(final Path other) {
+        Path parent = getParent();
+        return null == parent ? other : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(final String other) {
+        return resolveSibling(fs.getPath(other));
+    }
+
+    @Override
+    public Path relativize(final Path other) {
+        PharPath o = check(other);
+        if (isAbsolute() != o.isAbsolute()) {
+            throw new IllegalArgumentException("Cannot relativize " + other + " against " + this);
+        }
+        if (equals(o)) {
+            return new PharPath(fs, "");
+        }
+
+        String[] n = path.isEmpty() || path.equals("/") ? new String[0] : names();
+        String[] m = o.path.isEmpty() || o.path.equals("/") ? new String[0] : o.names();
+        int common = 0;
+        while (common < n.length && common < m.length && n[common].equals(m[common])) {
+            common++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = common; i < n.length; i++) {
+            sb.append(sb.length() > 0 ? "/.." : "..");
+        }
+        for (int i = common; i < m.length; i++) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(m[i]);
+        }
+
+        return new PharPath(fs, sb.toString());
+    }
+
+    @Override
+    public URI toUri() {
+        return fs.getProvider().toUri(fs, toAbsolutePath().toString());
+    }
+
+    @Override
+    public PharPath toAbsolutePath() {
+        return isAbsolute() ? this : new PharPath(fs, path.isEmpty() ? "/" : "/" + path);
+    }
+
+    @Override
+    public Path toRealPath(final LinkOption... options) throws IOException {
+        PharPath real = (PharPath) toAbsolutePath().normalize();
+        if (!fs.exists(real)) {
+            throw new NoSuchFileException(toString());
+        }
+
+        return real;
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(final WatchService watcher, final WatchEvent.Kind<?>[] events,
+            final WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(final WatchService watcher, final WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        final String[] n = names();
+        return new Iterator<Path>() {
+
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < n.length;
+            }
+
+            @Override
+            public Path next() {
+                if (i >= n.length) {
+                    throw new NoSuchElementException();
+                }
+                return new PharPath(fs, n[i++]);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int compareTo(final Path other) {
+        return path.compareTo(check(other).path);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof PharPath && ((PharPath) o).fs == fs && ((PharPath) o).path.equals(path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    private PharPath check(final Path other) {
+        if (!(other instanceof PharPath) || ((PharPath) other).fs != fs) {
+            throw new ProviderMismatchException();
+        }
+
+        return (PharPath) other;
+    }
+
+    static PharPath of(final Path path) {
+        if (!(path instanceof PharPath)) {
+            throw new ProviderMismatchException();
+        }
+
+        return (PharPath) path;
+    }
+}
@@ -35,9 +35,17 @@ public class PharURLConnection extends URLConnection {
 
     private final String entryName;
 
+    private final PharCache cache;
+
     protected PharURLConnection(URL url) throws MalformedURLException {
+        this(url, PharCache.getDefault());
+    }
+
+    protected PharURLConnection(URL url, PharCache cache) throws MalformedURLException {
         super(url);
 
+        this.cache = cache;
+
         if (!url.getProtocol().equals("phar")) {
             throw new MalformedURLException(url + ": Not phar protocol.");
         }
@@ -65,21 +73,41 @@ public class PharURLConnection extends URLConnection {
         return entryName;
     }
 
+    /**
+     * Get a copy of the archive shared through the cache, which the caller may modify
+     *
+     */
     public Phar getPharFile() {
-        return new Phar(pharFileURL.getPath());
+        return cache.get(pharFileURL.getPath()).copy();
     }
 
+    /**
+     * Get a copy of the entry, looked up in the archive shared through the cache
+     *
+     */
     public Entry getPharEntry() {
-        if (null == entryName) {
-            return null;
+        Entry entry = findEntry();
+        if (entry instanceof DataEntry) {
+            return ((DataEntry) entry).copy();
+        }
+        if (entry instanceof Stub) {
+            return new Stub(((Stub) entry).getCode());
         }
-        Phar pharFile = getPharFile();
-        return pharFile != null ? pharFile.findEntry(entryName) : null;
+
+        return entry;
     }
 
     @Override
     public InputStream getInputStream() throws IOException {
-        return getPharEntry().getInputStream();
+        return findEntry().getInputStream();
+    }
+
+    private Entry findEntry() {
+        if (null == entryName) {
+            return null;
+        }
+
+        return cache.get(pharFileURL.getPath()).findEntry(entryName);
     }
 
 }
@@ -30,8 +30,18 @@ import java.net.URLStreamHandler;
 
 public class PharURLStreamHandler extends URLStreamHandler {
 
+    private final PharCache cache;
+
+    public PharURLStreamHandler() {
+        this(PharCache.getDefault());
+    }
+
+    public PharURLStreamHandler(PharCache cache) {
+        this.cache = cache;
+    }
+
     @Override
     protected URLConnection openConnection(URL url) throws IOException {
-        return new PharURLConnection(url);
+        return new PharURLConnection(url, cache);
     }
 }
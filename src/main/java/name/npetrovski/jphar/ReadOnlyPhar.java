@@ -0,0 +1,422 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, thread-safe handle for reading a PHAR archive.
+ *
+ * <p>The manifest is parsed once when the handle is opened. All entry contents are then read with positional reads
+ * of a single shared channel, so any number of threads can read at the same time without locking and without
+ * opening the file again. The handle keeps reading the file it opened even when the path is replaced by a new
+ * archive.</p>
+ *
+ * <p>An interrupted reader closes a file channel for all its users; the channel is then reopened for the other
+ * readers, as long as the path still refers to the same file.</p>
+ *
+ */
+public final class ReadOnlyPhar implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path path;
+
+    private final Object fileKey;
+
+    private final String alias;
+
+    private final List<ReadOnlyEntry> entries;
+
+    private final EntryIndex<ReadOnlyEntry> index;
+
+    private final Object lock = new Object();
+
+    private volatile FileChannel channel;
+
+    private volatile boolean closed = false;
+
+    public ReadOnlyPhar(final File file) throws IOException {
+        this(file.toPath());
+    }
+
+    public ReadOnlyPhar(final Path path) throws IOException {
+        this.path = path.toAbsolutePath();
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+
+        try {
+            this.fileKey = Files.readAttributes(this.path, BasicFileAttributes.class).fileKey();
+
+            PharInputStream is = new PharInputStream(Channels.newInputStream(channel));
+            Stub.skip(is);
+            Manifest manifest = new Manifest();
+            manifest.read(is);
+            this.alias = manifest.getAlias().getName();
+
+            List<ReadOnlyEntry> list = new ArrayList<>(manifest.getEntryManifest().size());
+            long offset = is.getPosition();
+            for (EntryManifest em : manifest.getEntryManifest()) {
+                ReadOnlyEntry entry = new ReadOnlyEntry(em, offset);
+                list.add(entry);
+                offset += entry.getCompressedSize();
+            }
+
+            this.entries = Collections.unmodifiableList(list);
+            this.index = EntryIndex.build(list);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    /**
+     * All entries in archive order
+     *
+     */
+    public List<ReadOnlyEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Find entry by name, directories also without the trailing slash
+     *
+     */
+    public ReadOnlyEntry getEntry(final String name) {
+        return index.get(name);
+    }
+
+    /**
+     * Entries whose name starts with the prefix, in name order
+     *
+     */
+    public List<ReadOnlyEntry> list(final String prefix) {
+        return Collections.unmodifiableList(index.withPrefix(prefix));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Verify the archive against its signature
+     *
+     */
+    public boolean verify() throws IOException {
+        for (;;) {
+            FileChannel current = channel;
+            try {
+                return Signature.verify(current);
+            } catch (ClosedByInterruptException ex) {
+                reopen(current);
+                throw ex;
+            } catch (ClosedChannelException ex) {
+                reopen(current);
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    /**
+     * Read archive bytes at the position
+     *
+     */
+    int read(final ByteBuffer dst, final long position) throws IOException {
+        for (;;) {
+            FileChannel current = channel;
+            try {
+                return current.read(dst, position);
+            } catch (ClosedByInterruptException ex) {
+                // This reader was interrupted; the others go on with a new channel
+                reopen(current);
+                throw ex;
+            } catch (ClosedChannelException ex) {
+                reopen(current);
+            }
+        }
+    }
+
+    private void reopen(final FileChannel broken) throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (channel != broken) {
+                return;
+            }
+
+            FileChannel reopened = FileChannel.open(path, StandardOpenOption.READ);
+            Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            if (null == fileKey || !fileKey.equals(key)) {
+                reopened.close();
+                throw new IOException("Archive " + path + " was replaced while its channel was closed");
+            }
+            channel = reopened;
+        }
+    }
+
+    /**
+     * Entry of a read-only archive
+     *
+     */
+    public final class ReadOnlyEntry implements Entry {
+
+        private final String name;
+
+        private final long offset;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final int crc32;
+
+        private final int timestamp;
+
+        private final Compression.Type compression;
+
+        ReadOnlyEntry(final EntryManifest em, final long offset) {
+            this.name = em.getPath().toString();
+            this.offset = offset;
+            this.compressedSize = em.getCompressedLength();
+            this.size = em.getUncompressedLength();
+            this.crc32 = em.getCRC32();
+            this.timestamp = em.getTimestamp();
+            this.compression = em.getCompression().getType();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Integer getSize() {
+            return (int) size;
+        }
+
+        /**
+         * Uncompressed size, taking the manifest field as unsigned
+         *
+         */
+        public long getLength() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getCRC32() {
+            return crc32;
+        }
+
+        @Override
+        public Integer getLastModified() {
+            return timestamp;
+        }
+
+        public Compression.Type getCompression() {
+            return compression;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (isDirectory() || compressedSize == 0) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            return Codecs.newInputStream(compression, new PayloadInputStream(offset, compressedSize));
+        }
+
+        /**
+         * Entries of a read-only archive cannot be written
+         *
+         */
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException("Read-only archive");
+        }
+
+        /**
+         * Read content bytes at the position of the uncompressed content
+         *
+         * <p>Uncompressed entries are read straight from the archive; compressed ones are decompressed up to the
+         * position first.</p>
+         *
+         * @return number of bytes read, or -1 at the end of the content
+         */
+        public int read(final ByteBuffer dst, final long position) throws IOException {
+            if (position >= size) {
+                return -1;
+            }
+
+            int len = (int) Math.min(dst.remaining(), size - position);
+            if (compression == Compression.Type.NONE) {
+                ByteBuffer view = dst.duplicate();
+                view.limit(view.position() + len);
+                int n = ReadOnlyPhar.this.read(view, offset + position);
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of archive");
+                }
+                dst.position(dst.position() + n);
+                return n;
+            }
+
+            try (InputStream is = getInputStream()) {
+                for (long remaining = position; remaining > 0;) {
+                    long skipped = is.skip(remaining);
+                    if (skipped <= 0) {
+                        throw new EOFException("Unexpected end of entry " + name);
+                    }
+                    remaining -= skipped;
+                }
+
+                byte[] buffer = new byte[Math.min(len, BUFFER_SIZE)];
+                int n = is.read(buffer);
+                if (n > 0) {
+                    dst.put(buffer, 0, n);
+                }
+                return n;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ReadOnlyEntry(name=" + name + ", offset=" + offset + ", compressedSize=" + compressedSize
+                    + ", size=" + size + ", compression=" + compression + ")";
+        }
+    }
+
+    /**
+     * Stream over a payload region, read with positional reads of the shared channel
+     *
+     */
+    private final class PayloadInputStream extends InputStream {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private long position;
+
+        private long remaining;
+
+        PayloadInputStream(final long offset, final long size) {
+            this.position = offset;
+            this.remaining = size;
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            if (remaining == 0) {
+                return false;
+            }
+
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            int n = ReadOnlyPhar.this.read(buffer, position);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of archive");
+            }
+            buffer.flip();
+            position += n;
+            remaining -= n;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stream over a region of a file
+ *
+ * <p>The region is read in chunks with positional reads, so it may be of any size. A file opened for the stream is
+ * closed with it; a shared source is left open.</p>
+ *
+ */
+final class RegionInputStream extends InputStream {
+
+    /**
+     * File content read at a position, such as a channel shared by several readers
+     *
+     */
+    interface Source {
+
+        /**
+         * @return number of bytes read, or -1 at the end of the file
+         */
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Source source;
+
+    private final Closeable owned;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private long position;
+
+    private long remaining;
+
+    private RegionInputStream(final Source source, final Closeable owned, final long offset, final long size) {
+        this.source = source;
+        this.owned = owned;
+        this.position = offset;
+        this.remaining = size;
+        buffer.limit(0);
+    }
+
+    static RegionInputStream open(final Path path, final long offset, final long size) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new RegionInputStream(new Source() {
+            @Override
+            public int read(final ByteBuffer dst, final long position) throws IOException {
+                return channel.read(dst, position);
+            }
+        }, channel, offset, size);
+    }
+
+    /**
+     * Stream over a region of a shared source, which is not closed with the stream
+     *
+     */
+    static RegionInputStream of(final Source source, final long offset, final long size) {
+        return new RegionInputStream(source, null, offset, size);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        long skipped = Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + (int) skipped);
+
+        long ahead = Math.min(n - skipped, remaining);
+        position += ahead;
+        remaining -= ahead;
+        return skipped + ahead;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != owned) {
+            owned.close();
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (buffer.hasRemaining()) {
+            return true;
+        }
+        if (remaining == 0) {
+            return false;
+        }
+
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), remaining));
+        int n = source.read(buffer, position);
+        if (n <= 0) {
+            throw new EOFException("Unexpected end of file");
+        }
+        buffer.flip();
+        position += n;
+        remaining -= n;
+        return true;
+    }
+}
@@ -27,9 +27,14 @@ import lombok.Data;
 
 import javax.xml.bind.annotation.*;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -43,12 +48,16 @@ public class Signature implements Readable, Writable {
 
     private static final Logger LOGGER = Logger.getLogger(Signature.class.getName());
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private byte[] signature;
 
     @XmlAttribute(name = "signatureType")
     private Signature.Algorithm algorithm = Signature.Algorithm.SHA1;
 
-    private final String magic = "GBMB";
+    private static final String MAGIC = "GBMB";
+
+    private final String magic = MAGIC;
 
     public enum Algorithm {
 
@@ -74,6 +83,18 @@ public class Signature implements Readable, Writable {
             return this.algorithm;
         }
 
+        /**
+         * Create a digest for the algorithm
+         *
+         */
+        MessageDigest getMessageDigest() throws IOException {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException(ex);
+            }
+        }
+
         public static Algorithm getEnumByFlag(int code) {
             for (Algorithm e : Algorithm.values()) {
                 if (code == e.getFlag()) {
@@ -97,11 +118,10 @@ public class Signature implements Readable, Writable {
     public void read(PharInputStream is) throws IOException {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
-        int b;
-        while ((b = is.read()) != -1) {
-            buffer.write(b);
+        byte[] chunk = new byte[1024];
+        for (int n = 0; n >= 0; n = is.read(chunk)) {
+            buffer.write(chunk, 0, n);
         }
-        buffer.flush();
 
         byte[] data = buffer.toByteArray();
         signature = Arrays.copyOfRange(data, 0, data.length - 8);
@@ -126,11 +146,92 @@ public class Signature implements Readable, Writable {
         MessageDigest md;
         try {
             md = MessageDigest.getInstance(algorithm.getAlgorithm());
-            md.update(Files.readAllBytes(file.toPath()));
-            signature = md.digest();
         } catch (NoSuchAlgorithmException ex) {
             LOGGER.log(Level.SEVERE, ex.toString(), ex);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        }
+        signature = md.digest();
+    }
+
+    /**
+     * Verify the archive against the signature at its end.
+     *
+     * <p>The archive is digested in chunks through a direct buffer, so it is never held in memory.</p>
+     *
+     * @return false when the archive has no signature, an unknown signature type, or the digest does not match
+     */
+    public static boolean verify(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < 8) {
+            return false;
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, trailer, size - 8);
+        trailer.flip();
+
+        Algorithm type = Algorithm.getEnumByFlag(trailer.getInt());
+        byte[] magicBytes = new byte[4];
+        trailer.get(magicBytes);
+        if (null == type || !Arrays.equals(MAGIC.getBytes(StandardCharsets.US_ASCII), magicBytes)) {
+            return false;
+        }
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(type.getAlgorithm());
+        } catch (NoSuchAlgorithmException ex) {
+            LOGGER.log(Level.SEVERE, ex.toString(), ex);
+            return false;
         }
+
+        long signed = size - 8 - md.getDigestLength();
+        if (signed < 0) {
+            return false;
+        }
+
+        ByteBuffer expected = ByteBuffer.allocate(md.getDigestLength());
+        readFully(channel, expected, signed);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        for (long position = 0; position < signed;) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, signed - position));
+            readFully(channel, buffer, position);
+            buffer.flip();
+            position += buffer.remaining();
+            md.update(buffer);
+        }
+
+        return MessageDigest.isEqual(expected.array(), md.digest());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            offset += n;
+        }
+    }
+
+    /**
+     * Create a digest for the selected algorithm
+     *
+     */
+    MessageDigest getMessageDigest() throws IOException {
+        return algorithm.getMessageDigest();
     }
 
 }
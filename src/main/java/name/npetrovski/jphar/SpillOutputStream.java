@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffer of a payload waiting to be written, kept in memory while small and spilled to a temporary file beyond
+ * {@link #THRESHOLD}
+ *
+ * <p>The memory held by a buffer is bounded whatever the payload size. A closed buffer may be shared by several
+ * entries through {@link #retain()}; the spilled file is deleted once every one of them called
+ * {@link #release()}. The file of a buffer dropped without being released is deleted after the buffer is garbage
+ * collected, when the next buffer spills.</p>
+ *
+ */
+final class SpillOutputStream extends OutputStream {
+
+    static final int THRESHOLD = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Logger LOGGER = Logger.getLogger(SpillOutputStream.class.getName());
+
+    private static final ReferenceQueue<SpillOutputStream> DROPPED = new ReferenceQueue<>();
+
+    /**
+     * Spilled files not deleted yet; keeps their references reachable until they are enqueued
+     */
+    private static final Set<SpilledFile> SPILLED = Collections.newSetFromMap(
+            new ConcurrentHashMap<SpilledFile, Boolean>());
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    private Path file;
+
+    private SpilledFile spilled;
+
+    private OutputStream out;
+
+    private long size = 0;
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (null == out) {
+            out = memory;
+        }
+        if (null != memory && memory.size() + len > THRESHOLD) {
+            spill();
+        }
+
+        out.write(b, off, len);
+        size += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (null != out) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != out) {
+            out.close();
+        }
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Read the buffered payload; the buffer must be closed first
+     *
+     */
+    InputStream openInputStream() throws IOException {
+        if (null != file) {
+            return new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE);
+        }
+
+        return null != memory ? new ByteArrayInputStream(memory.toByteArray()) : new ByteArrayInputStream(new byte[0]);
+    }
+
+    void writeTo(final OutputStream target) throws IOException {
+        if (null != memory) {
+            memory.writeTo(target);
+            return;
+        }
+
+        try (InputStream is = openInputStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = is.read(buffer); n >= 0; n = is.read(buffer)) {
+                target.write(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Share the closed buffer with one more holder
+     *
+     */
+    SpillOutputStream retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Give up the buffer, deleting the spilled file when no holder is left
+     *
+     */
+    void release() throws IOException {
+        if (references.decrementAndGet() == 0) {
+            if (null != out) {
+                out.close();
+            }
+            if (null != spilled) {
+                spilled.delete();
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        expunge();
+
+        file = Files.createTempFile("jphar-", ".tmp");
+        spilled = new SpilledFile(this, file);
+        try {
+            out = new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE);
+            memory.writeTo(out);
+        } catch (IOException | RuntimeException ex) {
+            spilled.delete();
+            throw ex;
+        }
+        memory = null;
+    }
+
+    /**
+     * Delete the files of the buffers garbage collected without being released
+     *
+     */
+    private static void expunge() {
+        for (Reference<?> ref = DROPPED.poll(); null != ref; ref = DROPPED.poll()) {
+            try {
+                ((SpilledFile) ref).delete();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, ex.toString(), ex);
+            }
+        }
+    }
+
+    private static final class SpilledFile extends PhantomReference<SpillOutputStream> {
+
+        private final Path path;
+
+        SpilledFile(final SpillOutputStream buffer, final Path path) {
+            super(buffer, DROPPED);
+            this.path = path;
+            SPILLED.add(this);
+        }
+
+        void delete() throws IOException {
+            SPILLED.remove(this);
+            clear();
+            Files.deleteIfExists(path);
+        }
+    }
+}
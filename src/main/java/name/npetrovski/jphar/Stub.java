@@ -27,6 +27,7 @@ import lombok.Data;
 
 import javax.xml.bind.annotation.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 
 @Data
@@ -38,6 +39,10 @@ public class Stub implements Entry, Readable, Writable {
 
     static final String DEFAULT_PATH = ".phar/stub.php";
 
+    private static final int END_LF = ('?' << 16) | ('>' << 8) | '\n';
+
+    private static final int END_CRLF = ('?' << 24) | ('>' << 16) | ('\r' << 8) | '\n';
+
     @XmlValue
     private String code = DEFAULT_STUB;
 
@@ -102,11 +107,33 @@ public class Stub implements Entry, Readable, Writable {
 
     @Override
     public void read(PharInputStream is) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        scan(is, data);
+        code = new String(data.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Skip the stub code without decoding it
+     *
+     */
+    static void skip(PharInputStream is) throws IOException {
+        scan(is, null);
+    }
+
+    /**
+     * Read up to and including the line break after the closing "?>"
+     *
+     */
+    private static void scan(PharInputStream is, OutputStream out) throws IOException {
+        int tail = 0;
         int c;
-        code = "";
         while ((c = is.read()) != -1) {
-            code = code.concat(Character.toString((char) c));
-            if (code.length() >= 3 && (code.endsWith("?>\r\n") || code.endsWith("?>\n"))) {
+            if (null != out) {
+                out.write(c);
+            }
+
+            tail = (tail << 8) | c;
+            if ((tail & 0xFFFFFF) == END_LF || tail == END_CRLF) {
                 break;
             }
         }
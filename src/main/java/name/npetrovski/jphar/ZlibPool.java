@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 npetrovski.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package name.npetrovski.jphar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Bounded pools of raw deflate inflaters and deflaters
+ *
+ * <p>The streams created here take their inflater or deflater from the pool and give it back, reset, when they are
+ * closed. What does not fit into the pool is ended right away rather than left to finalization, which releases the
+ * native zlib memory.</p>
+ *
+ */
+final class ZlibPool {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final BlockingQueue<Inflater> INFLATERS = new LinkedBlockingQueue<>(CAPACITY);
+
+    private static final BlockingQueue<Deflater> DEFLATERS = new LinkedBlockingQueue<>(CAPACITY);
+
+    private ZlibPool() {
+    }
+
+    static Inflater inflater() {
+        Inflater inflater = INFLATERS.poll();
+        return null != inflater ? inflater : new Inflater(true);
+    }
+
+    static void release(final Inflater inflater) {
+        inflater.reset();
+        if (!INFLATERS.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    static Deflater deflater(final int level, final int strategy) {
+        Deflater deflater = DEFLATERS.poll();
+        if (null == deflater) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflater.setLevel(level);
+        }
+
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    static void release(final Deflater deflater) {
+        deflater.reset();
+        if (!DEFLATERS.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    static InputStream newInputStream(final InputStream is) {
+        return new PooledInflaterInputStream(is, inflater());
+    }
+
+    static OutputStream newOutputStream(final OutputStream os, final int level, final int strategy) {
+        return new PooledDeflaterOutputStream(os, deflater(level, strategy));
+    }
+
+    private static final class PooledInflaterInputStream extends InflaterInputStream {
+
+        private boolean closed = false;
+
+        PooledInflaterInputStream(final InputStream in, final Inflater inflater) {
+            super(in, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                super.close();
+            } finally {
+                release(inf);
+            }
+        }
+    }
+
+    private static final class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+        private boolean closed = false;
+
+        PooledDeflaterOutputStream(final OutputStream out, final Deflater deflater) {
+            super(out, deflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                super.close();
+            } finally {
+                release(def);
+            }
+        }
+    }
+}
@@ -1,9 +1,51 @@
 package name.npetrovski.jphar;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -72,6 +114,1210 @@ public class BasicTest extends TestCase {
         assertTrue(data.contains("SUITE_INIT"));
     }
 
+    public void testFindEntry() throws IOException {
+        final Phar p = new Phar("src/test/resources/phpunit-5.2.1.phar");
+
+        for (DataEntry e : p.getEntries()) {
+            assertSame(e, p.findEntry(e.getName()));
+        }
+        assertNull(p.findEntry("no/such/entry.php"));
+
+        String name = p.getEntries().get(0).getName();
+        p.rm(name);
+        assertNull(p.findEntry(name));
+        assertEquals(541, p.getEntries().size());
+    }
+
+    public void testIndexTracksChanges() throws IOException {
+        File file = tempArchive();
+
+        Phar p = new Phar(file);
+        for (int i = 0; i < 5000; i++) {
+            p.add(new DataEntry("src/" + i + ".php"));
+            assertNotNull(p.findEntry("src/" + i + ".php"));
+        }
+
+        p.getEntries().set(0, new DataEntry("replaced.php"));
+        assertNull(p.findEntry("src/0.php"));
+        assertNotNull(p.findEntry("replaced.php"));
+
+        p.getEntries().remove(1);
+        assertNull(p.findEntry("src/1.php"));
+        assertEquals(4998, p.list("src/").length);
+    }
+
+    public void testPrefixOperations() throws IOException {
+        final Phar p = new Phar("src/test/resources/codecept.phar");
+
+        int expected = 0;
+        for (String name : p.list()) {
+            if (name.startsWith("src/Codeception/Command/")) {
+                expected++;
+            }
+        }
+        String[] listed = p.list("src/Codeception/Command/");
+        assertTrue(expected > 0);
+        assertEquals(expected, listed.length);
+
+        assertSame(p.findEntry(listed[0]), p.mkdir("src/Codeception/Command"));
+
+        p.rmdir("src/Codeception/Command/");
+        assertEquals(0, p.list("src/Codeception/Command/").length);
+        assertEquals(965 - expected, p.getEntries().size());
+        assertEquals(965 - expected, p.getManifest().getEntryManifest().size());
+
+        DataEntry dir = p.mkdir("new/empty");
+        assertTrue(dir.isDirectory());
+        assertSame(dir, p.findEntry("new/empty"));
+    }
+
+    public void testIndexAfterInterleavedChanges() throws IOException {
+        File file = tempArchive();
+
+        Phar p = new Phar(file);
+        Random random = new Random(4);
+        for (int i = 0; i < 3000; i++) {
+            String dir = "d" + random.nextInt(10) + "/" + random.nextInt(10) + "/";
+            String name = dir + random.nextInt(20) + ".php";
+            switch (random.nextInt(6)) {
+                case 0:
+                    p.rm(name);
+                    assertNull(p.findEntry(name));
+                    break;
+                case 1:
+                    p.rmdir(dir);
+                    assertEquals(0, p.list(dir).length);
+                    break;
+                case 2:
+                    assertTrue(p.mkdir(dir).getName().startsWith(dir));
+                    break;
+                default:
+                    p.add(new DataEntry(name));
+                    break;
+            }
+
+            // The index agrees with a scan of the entries, the manifests follow the entries
+            String probe = "d" + random.nextInt(10) + "/";
+            List<String> expected = new ArrayList<>();
+            DataEntry first = null;
+            for (int j = 0; j < p.getEntries().size(); j++) {
+                DataEntry entry = p.getEntries().get(j);
+                assertSame(entry.getEntryManifest(), p.getManifest().getEntryManifest().get(j));
+                if (entry.getName().startsWith(probe)) {
+                    expected.add(entry.getName());
+                }
+                if (null == first && entry.getName().equals(name)) {
+                    first = entry;
+                }
+            }
+            Collections.sort(expected);
+            assertEquals(expected, Arrays.asList(p.list(probe)));
+            assertSame(first, p.findEntry(name));
+            assertEquals(p.getEntries().size(), p.getManifest().getEntryManifest().size());
+            assertEquals(p.getEntries().size(), (int) p.getManifest().getNumberOfFiles());
+        }
+    }
+
+    public void testPharInputStream() throws IOException {
+        StringBuilder longName = new StringBuilder();
+        while (longName.length() < 20000) {
+            longName.append("src/Ünïcödé/€/");
+        }
+        String name = longName.toString();
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        PharOutputStream out = new PharOutputStream(data);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt("äöü".getBytes(StandardCharsets.UTF_8).length);
+        out.write("äöü".getBytes(StandardCharsets.UTF_8));
+        out.writeInt(0x7F000001);
+        out.flush();
+
+        PharInputStream is = new PharInputStream(new ByteArrayInputStream(data.toByteArray()));
+        assertEquals(name, is.readString(is.readRInt()));
+        assertEquals("äöü", is.readString(is.readRInt()));
+        assertEquals(0x7F000001, is.readRInt());
+        assertEquals(data.size(), is.getPosition());
+        assertEquals(-1, is.read());
+
+        byte[] truncated = Arrays.copyOf(data.toByteArray(), 4 + bytes.length / 2);
+        is = new PharInputStream(new ByteArrayInputStream(truncated));
+        try {
+            is.readString(is.readRInt());
+            fail("Truncated strings are refused");
+        } catch (EOFException ex) {
+            // expected
+        }
+
+        is = new PharInputStream(new ByteArrayInputStream(new byte[] {1, 2}));
+        try {
+            is.readRInt();
+            fail("Truncated integers are refused");
+        } catch (EOFException ex) {
+            // expected
+        }
+    }
+
+    public void testBinaryMetadata() throws IOException {
+        byte[] serialized = new byte[] {'s', ':', '2', ':', '"', (byte) 0xFF, (byte) 0xC3, '"', ';'};
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        PharOutputStream out = new PharOutputStream(data);
+        out.writeInt(serialized.length);
+        out.write(serialized);
+        out.flush();
+
+        Metadata metadata = new Metadata();
+        metadata.read(new PharInputStream(new ByteArrayInputStream(data.toByteArray())));
+        assertTrue(Arrays.equals(serialized, metadata.getBytes()));
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        out = new PharOutputStream(written);
+        metadata.write(out);
+        out.flush();
+        assertTrue(Arrays.equals(data.toByteArray(), written.toByteArray()));
+
+        metadata.setMeta("s:1:\"a\";");
+        assertTrue(Arrays.equals("s:1:\"a\";".getBytes(StandardCharsets.UTF_8), metadata.getBytes()));
+    }
+
+    public void testPharCache() throws IOException {
+        File file = tempArchive("src/test/resources/phpunit-5.2.1.phar");
+
+        final PharCache cache = new PharCache(1);
+        Phar p = cache.get(file);
+        assertEquals(542, p.getEntries().size());
+        assertSame(p, cache.get(file.getPath()));
+
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        Phar changed = cache.get(file);
+        assertNotSame(p, changed);
+        assertSame(changed, cache.get(file));
+
+        cache.get(new File("src/test/resources/codecept.phar"));
+        assertEquals(1, cache.size());
+        assertNotSame(changed, cache.get(file));
+    }
+
+    public void testPharURLConnectionIsolation() throws IOException {
+        final PharCache cache = new PharCache(1);
+        URL url = new URL(null, "phar:" + new File("src/test/resources/codecept.phar").toURI().toURL()
+                + "!/src/Codeception/Events.php", new PharURLStreamHandler(cache));
+
+        PharURLConnection first = new PharURLConnection(url, cache);
+        PharURLConnection second = new PharURLConnection(url, cache);
+
+        Phar own = first.getPharFile();
+        own.rm("src/Codeception/Events.php");
+        own.getManifest().getAlias().setName("changed.phar");
+        assertNull(own.findEntry("src/Codeception/Events.php"));
+        assertNotNull(second.getPharEntry());
+
+        // Copies of the cached archive rather than new parses, reading the same payloads
+        Phar other = second.getPharFile();
+        assertNotSame(own, other);
+        assertEquals(965, other.getEntries().size());
+        assertEquals(965, other.getManifest().getEntryManifest().size());
+        assertFalse("changed.phar".equals(other.getManifest().getAlias().getName()));
+        assertSame(own.getEntries().get(0).getSource(), other.getEntries().get(0).getSource());
+        assertNotSame(other, other.getEntries().get(0).getSource());
+        assertTrue(new String(IOUtils.toByteArray(other.findEntry("src/Codeception/Events.php").getInputStream()))
+                .contains("class Events"));
+        assertEquals(new Phar("src/test/resources/codecept.phar").getStub().getCode(), other.getStub().getCode());
+
+        DataEntry entry = (DataEntry) first.getPharEntry();
+        entry.getEntryManifest().getPath().setName("renamed.php");
+        assertEquals("src/Codeception/Events.php", second.getPharEntry().getName());
+        assertTrue(new String(IOUtils.toByteArray(second.getInputStream())).contains("class Events"));
+    }
+
+    public void testMemoryMapped() throws IOException {
+        final Phar p = new Phar("src/test/resources/codecept.phar", Phar.Option.MEMORY_MAPPED);
+        assertEquals(965, p.getEntries().size());
+
+        Entry entry = p.findEntry("src/Codeception/Events.php");
+        assertNotNull(entry);
+
+        String data = new String(IOUtils.toByteArray(entry.getInputStream()));
+        assertTrue(data.contains("SUITE_INIT"));
+    }
+
+    public void testLazy() throws IOException {
+        final Phar eager = new Phar("src/test/resources/codecept.phar");
+        final Phar lazy = new Phar("src/test/resources/codecept.phar", Phar.Option.LAZY);
+
+        assertTrue(Arrays.equals(eager.list(), lazy.list()));
+        for (int i = 0; i < eager.getEntries().size(); i++) {
+            assertEquals(eager.getEntries().get(i).getOffset(), lazy.getEntries().get(i).getOffset());
+        }
+
+        assertEquals(eager.getStub().getCode(), lazy.getStub().getCode());
+        assertEquals(eager.getSignature().getAlgorithm(), lazy.getSignature().getAlgorithm());
+        assertTrue(Arrays.equals(eager.getSignature().getSignature(), lazy.getSignature().getSignature()));
+    }
+
+    public void testWriteRoundTrip() throws IOException, NoSuchAlgorithmException {
+        File file = tempArchive();
+
+        final Phar p = new Phar(file);
+        p.add(new File("src/test/resources/Image"), Compression.Type.BZIP);
+        p.setSignatureAlgorithm(Signature.Algorithm.SHA256);
+        p.setBufferSize(512);
+        p.write();
+
+        final Phar r = new Phar(file);
+        assertEquals(p.getEntries().size(), r.getEntries().size());
+        assertEquals(Signature.Algorithm.SHA256, r.getSignature().getAlgorithm());
+        assertTrue(Arrays.equals(p.getSignature().getSignature(), r.getSignature().getSignature()));
+
+        Entry entry = r.findEntry("Image/Canvas.php");
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(Files.readAllBytes(new File("src/test/resources/Image/Canvas.php").toPath()),
+                IOUtils.toByteArray(entry.getInputStream())));
+    }
+
+    public void testParallelWrite() throws IOException {
+        File serial = tempArchive();
+        File parallel = tempArchive();
+
+        Phar p = new Phar(serial);
+        p.add(new File("src/test/resources/Image"), Compression.Type.BZIP);
+        p.write();
+
+        Phar q = new Phar(parallel);
+        q.add(new File("src/test/resources/Image"), Compression.Type.BZIP);
+        q.getManifest().getAlias().setName(serial.getName());
+        q.write(4);
+
+        assertTrue(Arrays.equals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath())));
+    }
+
+    public void testIncrementalWrite() throws IOException {
+        File file = tempArchive("src/test/resources/codecept.phar");
+
+        final Phar p = new Phar(file);
+        DataEntry events = (DataEntry) p.findEntry("src/Codeception/Events.php");
+        byte[] payload = readPayload(file, events);
+
+        p.add(new File("src/test/resources/stub.php"), Compression.Type.ZLIB);
+        p.write();
+
+        final Phar r = new Phar(file);
+        assertEquals(966, r.getEntries().size());
+        DataEntry copied = (DataEntry) r.findEntry("src/Codeception/Events.php");
+        assertTrue(Arrays.equals(payload, readPayload(file, copied)));
+        assertTrue(new String(IOUtils.toByteArray(copied.getInputStream())).contains("SUITE_INIT"));
+        assertTrue(new String(IOUtils.toByteArray(r.findEntry("src/test/resources/stub.php").getInputStream()))
+                .contains("__HALT_COMPILER"));
+
+        // Entries of the written archive now read from it and switch compression on the next write
+        copied.getEntryManifest().getCompression().setType(Compression.Type.BZIP);
+        r.write();
+        Entry transcoded = new Phar(file).findEntry("src/Codeception/Events.php");
+        assertTrue(new String(IOUtils.toByteArray(transcoded.getInputStream())).contains("SUITE_INIT"));
+    }
+
+    public void testVerify() throws IOException {
+        assertTrue(new Phar("src/test/resources/phpunit-5.2.1.phar", Phar.Option.LAZY).verify());
+        assertTrue(new Phar("src/test/resources/codecept.phar", Phar.Option.LAZY).verify());
+
+        File file = tempArchive("src/test/resources/codecept.phar");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0xFF);
+        }
+        assertFalse(new Phar(file, Phar.Option.LAZY).verify());
+
+        final Phar p = new Phar(file);
+        p.write();
+        assertTrue(p.verify());
+    }
+
+    public void testEntryDigests() throws IOException {
+        File file = tempArchive();
+
+        Phar p = new Phar(file);
+        p.setEntryDigests(true);
+        p.add(new File("src/test/resources/Image"), Compression.Type.ZLIB);
+        p.write(2);
+        assertTrue(p.verifyEntries().isEmpty());
+
+        DataEntry entry = (DataEntry) p.findEntry("Image/Canvas.php");
+        byte[] digest = entry.getDigest();
+        assertNotNull(digest);
+
+        // Payloads copied unchanged keep their digest
+        p.write();
+        assertTrue(Arrays.equals(digest, entry.getDigest()));
+        assertTrue(p.verifyEntries().isEmpty());
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(entry.getOffset());
+            int b = raf.read();
+            raf.seek(entry.getOffset());
+            raf.write(b ^ 0xFF);
+        }
+        assertEquals(Arrays.asList(entry.getName()), p.verifyEntries());
+    }
+
+    public void testExtractTo() throws IOException {
+        Path serial = Files.createTempDirectory("jphar-");
+        Path parallel = Files.createTempDirectory("jphar-");
+        File archive = tempArchive();
+        try {
+            final Phar p = new Phar("src/test/resources/codecept.phar");
+            p.extractTo(serial);
+            p.extractTo(parallel, 4);
+
+            for (DataEntry entry : p.getEntries()) {
+                Path file = serial.resolve(entry.getName());
+                assertTrue(Files.exists(file));
+                if (!entry.isDirectory()) {
+                    byte[] data = IOUtils.toByteArray(entry.getInputStream());
+                    assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+                    assertTrue(Arrays.equals(data, Files.readAllBytes(parallel.resolve(entry.getName()))));
+                    assertEquals(entry.getLastModified() * 1000L, Files.getLastModifiedTime(file).toMillis());
+                }
+            }
+
+            try {
+                p.extractTo(serial);
+                fail("Existing files are not replaced by default");
+            } catch (FileAlreadyExistsException ex) {
+                // expected
+            }
+            p.extractTo(serial, StandardCopyOption.REPLACE_EXISTING);
+
+            final Phar q = new Phar(archive);
+            q.getEntries().add(new DataEntry("../escape.txt"));
+            try {
+                q.extractTo(serial);
+                fail("Entries outside of the target directory are refused");
+            } catch (IOException ex) {
+                assertFalse(Files.exists(serial.resolveSibling("escape.txt")));
+            }
+        } finally {
+            deleteTree(serial);
+            deleteTree(parallel);
+        }
+    }
+
+    public void testLargeEntries() throws IOException {
+        EntryManifest em = new EntryManifest();
+        em.setCompressedLength(3000000000L);
+        assertEquals(3000000000L, em.getCompressedLength());
+        assertTrue(em.getCompressedSize() < 0);
+        try {
+            em.setUncompressedLength(EntryManifest.MAX_SIZE + 1);
+            fail("Sizes beyond the manifest range are refused");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+
+        File file = tempArchive();
+
+        byte[] content = new byte[6 << 20];
+        new Random(42).nextBytes(content);
+
+        Phar p = new Phar(file);
+        p.add(DataEntry.createFromStream("data/model.bin", new ByteArrayInputStream(content),
+                Compression.Type.NONE));
+        p.add(DataEntry.createFromStream("data/model.gz", new ByteArrayInputStream(content),
+                Compression.Type.ZLIB));
+        p.write();
+
+        Phar q = new Phar(file);
+        for (DataEntry entry : q.getEntries()) {
+            assertEquals(content.length, entry.getLength());
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(entry.getInputStream())));
+        }
+
+        DataEntry stored = (DataEntry) q.findEntry("data/model.bin");
+        try (InputStream is = RegionInputStream.open(file.toPath(), stored.getOffset(), content.length)) {
+            assertEquals(0, is.skip(-100));
+            assertEquals(content[0] & 0xff, is.read());
+            assertEquals(0, is.skip(-1));
+            assertEquals(content[1] & 0xff, is.read());
+            assertEquals(1000, is.skip(1000));
+            assertEquals(content[1002] & 0xff, is.read());
+        }
+
+        Path directory = Files.createTempDirectory("jphar-");
+        try {
+            q.extractTo(directory, 2);
+            assertTrue(Arrays.equals(content, Files.readAllBytes(directory.resolve("data/model.bin"))));
+            assertTrue(Arrays.equals(content, Files.readAllBytes(directory.resolve("data/model.gz"))));
+        } finally {
+            deleteTree(directory);
+        }
+    }
+
+    public void testMerge() throws IOException {
+        File first = tempArchive();
+        File second = tempArchive();
+        File merged = tempArchive();
+
+        Phar a = new Phar(first);
+        a.setStub("<?php echo 'merged'; __HALT_COMPILER(); ?>\n");
+        a.add(DataEntry.createFromStream("lib/", new ByteArrayInputStream(new byte[0]), Compression.Type.NONE));
+        a.add(DataEntry.createFromStream("lib/a.php", new ByteArrayInputStream("a".getBytes()),
+                Compression.Type.ZLIB));
+        a.add(DataEntry.createFromStream("lib/common.php", new ByteArrayInputStream("first".getBytes()),
+                Compression.Type.BZIP));
+        a.write();
+
+        Phar b = new Phar(second);
+        b.add(DataEntry.createFromStream("lib/", new ByteArrayInputStream(new byte[0]), Compression.Type.NONE));
+        b.add(DataEntry.createFromStream("lib/common.php", new ByteArrayInputStream("second".getBytes()),
+                Compression.Type.ZLIB));
+        b.add(DataEntry.createFromStream("lib/b.php", new ByteArrayInputStream("b".getBytes()),
+                Compression.Type.NONE));
+        b.write();
+
+        try {
+            Phar.merge(merged, Phar.MergePolicy.FAIL, new Phar(first), new Phar(second));
+            fail("Entries of the same name are refused");
+        } catch (IllegalArgumentException ex) {
+            assertFalse(merged.exists());
+        }
+
+        Phar p = Phar.merge(merged, Phar.MergePolicy.KEEP_LAST, new Phar(first), new Phar(second));
+        assertTrue(p.getStub().getCode().contains("merged"));
+
+        Phar q = new Phar(merged);
+        assertTrue(q.verify());
+        // The stub of the first archive maps it by its alias
+        assertEquals(new Phar(first).getManifest().getAlias().getName(), q.getManifest().getAlias().getName());
+        assertEquals(4, q.getEntries().size());
+        assertEquals("lib/", q.getEntries().get(0).getName());
+        assertEquals("lib/a.php", q.getEntries().get(1).getName());
+        assertEquals("lib/common.php", q.getEntries().get(2).getName());
+        assertEquals("lib/b.php", q.getEntries().get(3).getName());
+        assertEquals("second",
+                new String(IOUtils.toByteArray(q.findEntry("lib/common.php").getInputStream())));
+
+        // Payloads are copied as they are
+        DataEntry source = new Phar(second).getEntries().get(1);
+        DataEntry copy = q.getEntries().get(2);
+        assertEquals(Compression.Type.ZLIB, copy.getEntryManifest().getCompression().getType());
+        assertEquals(source.getEntryManifest().getCRC32(), copy.getEntryManifest().getCRC32());
+        assertEquals(source.getEntryManifest().getCompressedSize(), copy.getEntryManifest().getCompressedSize());
+
+        Phar c = new Phar(first);
+        c.merge(Phar.MergePolicy.KEEP_FIRST, new Phar(second));
+        c.write();
+        Phar r = new Phar(first);
+        assertEquals("first", new String(IOUtils.toByteArray(r.findEntry("lib/common.php").getInputStream())));
+        assertEquals("b", new String(IOUtils.toByteArray(r.findEntry("lib/b.php").getInputStream())));
+    }
+
+    public void testTranscode() throws IOException {
+        File bzip = tempArchive();
+        File none = tempArchive();
+        File mixed = tempArchive();
+
+        Phar source = new Phar("src/test/resources/codecept.phar");
+        source.transcode(bzip, Compression.Type.BZIP, 4);
+        new Phar(bzip).transcode(none, Compression.Type.NONE, 4);
+        new Phar(none).transcode(mixed, new Phar.CompressionPolicy() {
+            @Override
+            public Compression.Type select(DataEntry entry) {
+                return entry.getName().endsWith(".php") ? Compression.Type.ZLIB : null;
+            }
+        }, 4);
+
+        Phar b = new Phar(bzip);
+        Phar n = new Phar(none);
+        Phar m = new Phar(mixed);
+        assertTrue(b.verify());
+        assertTrue(n.verify());
+        assertTrue(m.verify());
+        assertEquals(source.getStub().getCode(), n.getStub().getCode());
+        assertEquals(source.getEntries().size(), m.getEntries().size());
+
+        for (int i = 0; i < source.getEntries().size(); i++) {
+            DataEntry entry = source.getEntries().get(i);
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            byte[] data = IOUtils.toByteArray(entry.getInputStream());
+            assertEquals(Compression.Type.BZIP, b.getEntries().get(i).getEntryManifest().getCompression().getType());
+            assertEquals(Compression.Type.NONE, n.getEntries().get(i).getEntryManifest().getCompression().getType());
+            assertTrue(Arrays.equals(data, IOUtils.toByteArray(b.getEntries().get(i).getInputStream())));
+            assertTrue(Arrays.equals(data, IOUtils.toByteArray(n.getEntries().get(i).getInputStream())));
+            assertTrue(Arrays.equals(data, IOUtils.toByteArray(m.getEntries().get(i).getInputStream())));
+
+            EntryManifest em = m.getEntries().get(i).getEntryManifest();
+            if (entry.getName().endsWith(".php")) {
+                assertEquals(Compression.Type.ZLIB, em.getCompression().getType());
+            } else {
+                assertEquals(Compression.Type.NONE, em.getCompression().getType());
+                assertEquals(data.length, (int) em.getCompressedSize());
+            }
+        }
+    }
+
+    public void testTranscodeKeepsManifest() throws IOException {
+        File file = tempArchive();
+
+        Phar source = new Phar("src/test/resources/phpunit-5.2.1.phar");
+        source.transcode(file, Compression.Type.ZLIB, 4);
+
+        // The stub maps the archive by the alias it was built with, whatever the file is called
+        Phar p = new Phar(file);
+        assertTrue(p.verify());
+        assertTrue(source.getStub().getCode().contains("mapPhar('phpunit-5.2.1.phar')"));
+        assertEquals("phpunit-5.2.1.phar", p.getManifest().getAlias().getName());
+        assertEquals(source.getManifest().getVersion().getVersion(), p.getManifest().getVersion().getVersion());
+        assertTrue(Arrays.equals(source.getManifest().getMetadata().getBytes(),
+                p.getManifest().getMetadata().getBytes()));
+    }
+
+    public void testCreateFromStream() throws IOException {
+        File file = tempArchive();
+
+        byte[] content = Files.readAllBytes(new File("src/test/resources/Image/Canvas.php").toPath());
+
+        Phar p = new Phar(file);
+        p.add(new File("src/test/resources/Image/Canvas.php"), Compression.Type.BZIP);
+        p.add(DataEntry.createFromStream("generated/Canvas.php", new ByteArrayInputStream(content),
+                Compression.Type.ZLIB));
+        p.add(DataEntry.createFromChannel("generated/Plain.php",
+                Channels.newChannel(new ByteArrayInputStream(content)), Compression.Type.NONE));
+        p.write();
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+
+        Phar r = new Phar(file);
+        assertEquals(3, r.getEntries().size());
+        for (DataEntry entry : r.getEntries()) {
+            assertEquals(content.length, (int) entry.getSize());
+            assertEquals((int) crc.getValue(), (int) entry.getEntryManifest().getCRC32());
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(entry.getInputStream())));
+        }
+    }
+
+    public void testAddFiltered() throws IOException {
+        File file = tempArchive();
+
+        Phar p = new Phar(file);
+        p.add(new File("src/test/resources/Image"), Compression.Type.NONE, 1, null, null);
+        Phar q = new Phar(file);
+        q.add(new File("src/test/resources/Image"), Compression.Type.NONE, 4, null, null);
+        assertEquals(Arrays.asList(p.list()), Arrays.asList(q.list()));
+        for (int i = 0; i < p.getEntries().size(); i++) {
+            assertEquals(p.getEntries().get(i).getName(), q.getEntries().get(i).getName());
+        }
+
+        Phar r = new Phar(file);
+        r.add(new File("src/test/resources/Image"), Compression.Type.NONE,
+                new String[] {"**/*.php"}, new String[] {"Reader/**"});
+        assertNotNull(r.findEntry("Image/Fx/FxBase.php"));
+        assertNull(r.findEntry("Image/Canvas.php"));
+        assertNull(r.findEntry("Image/Reader/DefaultReader.php"));
+        assertNull(r.findEntry("Image/Reader/Adapter/Png.php"));
+    }
+
+    public void testSpillOutputStream() throws IOException {
+        byte[] content = new byte[SpillOutputStream.THRESHOLD * 3];
+        new Random(7).nextBytes(content);
+
+        SpillOutputStream small = new SpillOutputStream();
+        small.write(content, 0, 100);
+        small.close();
+        assertEquals(100, small.getSize());
+        assertTrue(Arrays.equals(Arrays.copyOf(content, 100), IOUtils.toByteArray(small.openInputStream())));
+
+        SpillOutputStream large = new SpillOutputStream();
+        large.write(content, 0, 1000);
+        large.write(content, 1000, content.length - 1000);
+        large.close();
+        assertEquals(content.length, large.getSize());
+
+        SpillOutputStream shared = large.retain();
+        large.release();
+        try (InputStream is = shared.openInputStream()) {
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(is)));
+        }
+        shared.release();
+        try {
+            shared.openInputStream().close();
+            fail("The spilled file is deleted with the last holder");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    public void testSpillFilesDeleted() throws Exception {
+        Set<Path> before = spillFiles();
+        byte[] content = new byte[SpillOutputStream.THRESHOLD * 2];
+        new Random(3).nextBytes(content);
+
+        File file = tempArchive();
+        Phar p = new Phar(file);
+        for (int i = 0; i < 4; i++) {
+            p.add(DataEntry.createFromStream("data/" + i + ".bin", new ByteArrayInputStream(content),
+                    Compression.Type.NONE));
+        }
+        Set<Path> spilled = spillFiles();
+        spilled.removeAll(before);
+        assertEquals(4, spilled.size());
+        p.write();
+        assertTrue(before.containsAll(spillFiles()));
+
+        // A failing source leaves nothing behind
+        try {
+            DataEntry.createFromStream("broken.bin", new SequenceInputStream(new ByteArrayInputStream(content),
+                    new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            throw new IOException("broken");
+                        }
+                    }), Compression.Type.NONE);
+            fail("The source fails");
+        } catch (IOException ex) {
+            assertTrue(before.containsAll(spillFiles()));
+        }
+
+        // Entries dropped without being written are cleaned up once collected
+        Phar discarded = new Phar(tempArchive());
+        for (int i = 0; i < 4; i++) {
+            discarded.add(DataEntry.createFromStream("data/" + i + ".bin", new ByteArrayInputStream(content),
+                    Compression.Type.ZLIB));
+        }
+        discarded = null;
+        for (int i = 0; i < 100 && !before.containsAll(spillFiles()); i++) {
+            System.gc();
+            Thread.sleep(10);
+            // The next spill deletes the files of collected buffers
+            SpillOutputStream next = new SpillOutputStream();
+            next.write(content);
+            next.close();
+            next.release();
+        }
+        assertTrue(before.containsAll(spillFiles()));
+    }
+
+    private static Set<Path> spillFiles() throws IOException {
+        Set<Path> files = new HashSet<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(System.getProperty("java.io.tmpdir")),
+                "jphar-*.tmp")) {
+            for (Path path : dir) {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    public void testZlibPool() throws IOException {
+        byte[] content = Files.readAllBytes(new File("src/test/resources/Image/Canvas.php").toPath());
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = ZlibPool.newOutputStream(compressed, Deflater.BEST_SPEED,
+                Deflater.DEFAULT_STRATEGY)) {
+            out.write(content);
+        }
+
+        // Streams hand back their inflaters reset, so a reused one decompresses the same data again
+        for (int i = 0; i < 3; i++) {
+            try (InputStream is = ZlibPool.newInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+                assertTrue(Arrays.equals(content, IOUtils.toByteArray(is)));
+            }
+        }
+
+        Inflater inflater = ZlibPool.inflater();
+        assertEquals(0, inflater.getBytesRead());
+        ZlibPool.release(inflater);
+    }
+
+    public void testCompressionLevel() throws IOException {
+        File fast = tempArchive();
+        File best = tempArchive();
+
+        CodecStatistics statistics = Codecs.getStatistics(Compression.Type.ZLIB);
+        long input = statistics.getCompressionInput();
+
+        Phar p = new Phar(fast);
+        p.setCompressionLevel(Deflater.BEST_SPEED);
+        p.add(new File("src/test/resources/Image"), Compression.Type.ZLIB);
+        p.write();
+        assertEquals(input, statistics.getCompressionInput());
+
+        // Recompressing with metering on decompresses the ZLIB payload and compresses it with BZIP
+        Compression canvas = ((DataEntry) p.findEntry("Image/Canvas.php")).getEntryManifest().getCompression();
+        Codecs.setMetered(true);
+        try {
+            canvas.setType(Compression.Type.BZIP);
+            p.write();
+        } finally {
+            Codecs.setMetered(false);
+        }
+        assertTrue(Codecs.getStatistics(Compression.Type.BZIP).getCompressionInput() > 0);
+        assertTrue(Codecs.getStatistics(Compression.Type.ZLIB).getDecompressedBytes() > 0);
+        canvas.setType(Compression.Type.ZLIB);
+        p.write();
+
+        Phar q = new Phar(best);
+        q.setCompressionLevel(Deflater.BEST_COMPRESSION);
+        q.add(new File("src/test/resources/Image"), Compression.Type.ZLIB);
+        ((DataEntry) q.findEntry("Image/Canvas.php")).getEntryManifest().getCompression()
+                .setLevel(Deflater.NO_COMPRESSION);
+        q.write();
+
+        DataEntry stored = (DataEntry) new Phar(best).findEntry("Image/Canvas.php");
+        assertTrue(stored.getEntryManifest().getCompressedSize() > stored.getSize());
+        assertTrue(best.length() - stored.getEntryManifest().getCompressedSize()
+                < fast.length() - ((DataEntry) new Phar(fast).findEntry("Image/Canvas.php"))
+                .getEntryManifest().getCompressedSize());
+        assertTrue(new String(IOUtils.toByteArray(stored.getInputStream())).contains("class"));
+    }
+
+    public void testAdaptiveCompression() throws IOException {
+        File file = tempArchive();
+
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        byte[] gzip = {0x1F, (byte) 0x8B, 8, 0, 0, 0, 0, 0, 0, 3};
+
+        Phar p = new Phar(file);
+        p.setAdaptiveCompression(true);
+        p.add(new File("src/test/resources/Image"), Compression.Type.ZLIB);
+        p.add(DataEntry.createFromStream("random.bin", new ByteArrayInputStream(random), Compression.Type.NONE));
+        p.add(DataEntry.createFromStream("archive.bin", new ByteArrayInputStream(gzip), Compression.Type.NONE));
+        p.add(DataEntry.createFromStream("image.png", new ByteArrayInputStream(new byte[1024]), Compression.Type.NONE));
+        for (DataEntry entry : p.getEntries()) {
+            entry.getEntryManifest().getCompression().setType(Compression.Type.ZLIB);
+        }
+        p.write();
+
+        Phar r = new Phar(file);
+        assertEquals(Compression.Type.ZLIB,
+                ((DataEntry) r.findEntry("Image/Canvas.php")).getEntryManifest().getCompression().getType());
+        for (String name : new String[] {"random.bin", "archive.bin", "image.png"}) {
+            DataEntry entry = (DataEntry) r.findEntry(name);
+            assertEquals(name, Compression.Type.NONE, entry.getEntryManifest().getCompression().getType());
+        }
+        assertTrue(Arrays.equals(random, IOUtils.toByteArray(r.findEntry("random.bin").getInputStream())));
+    }
+
+    public void testAdaptiveCompressionOfStreams() throws IOException {
+        File file = tempArchive();
+
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        byte[] text = Files.readAllBytes(new File("src/test/resources/Image/Canvas.php").toPath());
+
+        Phar p = new Phar(file);
+        p.setAdaptiveCompression(true);
+        p.add(DataEntry.createFromStream("random.bin", new ByteArrayInputStream(random), Compression.Type.ZLIB));
+        p.add(DataEntry.createFromStream("Canvas.php", new ByteArrayInputStream(text), Compression.Type.ZLIB));
+        p.write();
+
+        Phar r = new Phar(file);
+        DataEntry stored = (DataEntry) r.findEntry("random.bin");
+        assertEquals(Compression.Type.NONE, stored.getEntryManifest().getCompression().getType());
+        assertEquals(random.length, (int) stored.getEntryManifest().getCompressedSize());
+        assertTrue(Arrays.equals(random, IOUtils.toByteArray(stored.getInputStream())));
+
+        DataEntry compressed = (DataEntry) r.findEntry("Canvas.php");
+        assertEquals(Compression.Type.ZLIB, compressed.getEntryManifest().getCompression().getType());
+        assertTrue(Arrays.equals(text, IOUtils.toByteArray(compressed.getInputStream())));
+        assertTrue(r.verify());
+    }
+
+    public void testContentCache() throws IOException {
+        File file = tempArchive("src/test/resources/codecept.phar");
+
+        ContentCache cache = new ContentCache(64 * 1024, true);
+        final Phar p = new Phar(file);
+        p.setContentCache(cache);
+
+        Entry entry = p.findEntry("src/Codeception/Events.php");
+        byte[] content = IOUtils.toByteArray(entry.getInputStream());
+        assertTrue(Arrays.equals(content, IOUtils.toByteArray(entry.getInputStream())));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(content.length, cache.getBytes());
+
+        for (DataEntry e : p.getEntries()) {
+            IOUtils.toByteArray(e.getInputStream());
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+
+        // Rewriting the archive moves the payloads, so their contents are read again
+        p.rm("src/Codeception/Events.php");
+        p.write();
+        long misses = cache.getMisses();
+        Entry moved = p.getEntries().get(0);
+        assertTrue(Arrays.equals(IOUtils.toByteArray(new Phar(file).getEntries().get(0).getInputStream()),
+                IOUtils.toByteArray(moved.getInputStream())));
+        assertEquals(misses + 1, cache.getMisses());
+
+        // Contents larger than the cache are streamed without being kept
+        ContentCache small = new ContentCache(16);
+        Phar q = new Phar("src/test/resources/codecept.phar");
+        q.setContentCache(small);
+        Entry events = q.findEntry("src/Codeception/Events.php");
+        assertTrue(Arrays.equals(content, IOUtils.toByteArray(events.getInputStream())));
+        assertEquals(0, small.getBytes());
+        assertEquals(0, small.size());
+    }
+
+    public void testFileSystem() throws IOException {
+        File file = new File("src/test/resources/codecept.phar");
+        URI uri = URI.create("phar:" + file.toURI());
+
+        try (FileSystem fs = FileSystems.newFileSystem(uri, new HashMap<String, Object>())) {
+            Phar p = new Phar(file);
+            DataEntry entry = (DataEntry) p.findEntry("src/Codeception/Events.php");
+            byte[] content = IOUtils.toByteArray(entry.getInputStream());
+
+            Path path = fs.getPath("/src/Codeception/Events.php");
+            assertTrue(Files.isRegularFile(path));
+            assertTrue(Files.isDirectory(path.getParent()));
+            assertTrue(Arrays.equals(content, Files.readAllBytes(path)));
+            assertEquals(content.length, Files.size(path));
+            assertEquals(entry.getLastModified() * 1000L, Files.getLastModifiedTime(path).toMillis());
+            assertEquals((int) entry.getEntryManifest().getCompressedSize(),
+                    ((Number) Files.getAttribute(path, "phar:compressedSize")).intValue());
+            assertSame(fs, Paths.get(path.toUri()).getFileSystem());
+
+            try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+                ByteBuffer buffer = ByteBuffer.allocate(16);
+                channel.position(content.length - 16);
+                assertEquals(16, channel.read(buffer));
+                assertTrue(Arrays.equals(Arrays.copyOfRange(content, content.length - 16, content.length),
+                        buffer.array()));
+
+                buffer.clear();
+                channel.position(0);
+                channel.read(buffer);
+                assertTrue(Arrays.equals(Arrays.copyOf(content, 16), buffer.array()));
+                assertEquals(-1, channel.position(content.length).read(buffer));
+            }
+
+            int files = 0;
+            try (DirectoryStream<Path> walk = Files.newDirectoryStream(fs.getPath("/src/Codeception"))) {
+                for (Path child : walk) {
+                    assertEquals("/src/Codeception", child.getParent().toString());
+                    files++;
+                }
+            }
+            assertTrue(files > 0);
+
+            final int[] walked = {0};
+            Files.walkFileTree(fs.getPath("/"), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                    walked[0]++;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            assertEquals(p.getEntries().size(), walked[0]);
+
+            PathMatcher matcher = fs.getPathMatcher("glob:/src/**/*.php");
+            assertTrue(matcher.matches(path));
+            assertFalse(fs.getPathMatcher("glob:/src/*.php").matches(path));
+
+            try {
+                Files.delete(path);
+                fail("The file system is read-only");
+            } catch (ReadOnlyFileSystemException ex) {
+                // expected
+            }
+        }
+    }
+
+    public void testFileSystemStoredEntries() throws Exception {
+        File file = tempArchive();
+
+        final byte[] content = new byte[256 << 10];
+        new Random(7).nextBytes(content);
+
+        Phar p = new Phar(file);
+        p.add(DataEntry.createFromStream("./lib/stored.bin", new ByteArrayInputStream(content),
+                Compression.Type.NONE));
+        p.add(DataEntry.createFromStream("lib/deflated.bin", new ByteArrayInputStream(content),
+                Compression.Type.ZLIB));
+        p.write();
+
+        URI uri = URI.create("phar:" + file.toURI());
+        try (FileSystem fs = FileSystems.newFileSystem(uri, new HashMap<String, Object>())) {
+            final Path stored = fs.getPath("/lib/stored.bin");
+            assertTrue(Files.isRegularFile(stored));
+            assertTrue(Arrays.equals(content, IOUtils.toByteArray(Files.newInputStream(stored))));
+
+            try (SeekableByteChannel channel = Files.newByteChannel(stored)) {
+                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                channel.position(content.length - 100);
+                assertEquals(100, channel.read(buffer));
+                assertTrue(Arrays.equals(Arrays.copyOfRange(content, content.length - 100, content.length),
+                        Arrays.copyOf(buffer.array(), 100)));
+                assertEquals(-1, channel.read(buffer));
+
+                buffer.clear();
+                channel.position(1000);
+                assertEquals(1024, channel.read(buffer));
+                assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1000, 2024), buffer.array()));
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<byte[]>> results = new ArrayList<>();
+                for (int i = 0; i < 32; i++) {
+                    final Path path = i % 2 == 0 ? stored : fs.getPath("/lib/deflated.bin");
+                    final boolean channel = i % 4 < 2;
+                    results.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            if (!channel) {
+                                return IOUtils.toByteArray(Files.newInputStream(path));
+                            }
+                            try (SeekableByteChannel ch = Files.newByteChannel(path)) {
+                                return IOUtils.toByteArray(Channels.newInputStream(ch));
+                            }
+                        }
+                    }));
+                }
+                for (Future<byte[]> result : results) {
+                    assertTrue(Arrays.equals(content, result.get()));
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            // An interrupted reader closes the shared channel, the next reader gets a new one
+            final Object[] failure = new Object[1];
+            Thread interrupted = new Thread() {
+                @Override
+                public void run() {
+                    interrupt();
+                    try (InputStream is = Files.newInputStream(stored)) {
+                        failure[0] = IOUtils.toByteArray(is);
+                    } catch (IOException ex) {
+                        failure[0] = ex;
+                    }
+                }
+            };
+            interrupted.start();
+            interrupted.join();
+            assertTrue(failure[0] instanceof ClosedByInterruptException);
+
+            final List<byte[]> read = new ArrayList<>();
+            Thread next = new Thread() {
+                @Override
+                public void run() {
+                    try (SeekableByteChannel channel = Files.newByteChannel(stored)) {
+                        read.add(IOUtils.toByteArray(Channels.newInputStream(channel)));
+                        read.add(IOUtils.toByteArray(Files.newInputStream(fs.getPath("/lib/deflated.bin"))));
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            };
+            next.start();
+            next.join();
+            assertEquals(2, read.size());
+            assertTrue(Arrays.equals(content, read.get(0)));
+            assertTrue(Arrays.equals(content, read.get(1)));
+        }
+    }
+
+    public void testReadOnlyPhar() throws Exception {
+        final Phar p = new Phar("src/test/resources/codecept.phar");
+        final Map<String, byte[]> expected = new HashMap<>();
+        for (DataEntry entry : p.getEntries()) {
+            expected.put(entry.getName(), IOUtils.toByteArray(entry.getInputStream()));
+        }
+
+        try (final ReadOnlyPhar r = new ReadOnlyPhar(new File("src/test/resources/codecept.phar"))) {
+            assertEquals(p.getEntries().size(), r.size());
+            assertTrue(r.verify());
+            assertEquals(p.list("src/Codeception/").length, r.list("src/Codeception/").size());
+
+            // Threads share the handle and its channel without locking
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        for (ReadOnlyPhar.ReadOnlyEntry entry : r.getEntries()) {
+                            if (!Arrays.equals(expected.get(entry.getName()),
+                                    IOUtils.toByteArray(entry.getInputStream()))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+            executor.shutdown();
+
+            ReadOnlyPhar.ReadOnlyEntry entry = r.getEntry("src/Codeception/Events.php");
+            byte[] content = expected.get(entry.getName());
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            assertEquals(10, entry.read(buffer, 20));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(content, 20, 30), buffer.array()));
+        }
+    }
+
+    public void testPharBuilder() throws Exception {
+        File first = tempArchive();
+        File second = tempArchive();
+
+        final byte[] content = Files.readAllBytes(new File("src/test/resources/Image/Canvas.php").toPath());
+        for (File file : new File[] {first, second}) {
+            final PharBuilder builder = new PharBuilder(file);
+            builder.setCompression(Compression.Type.ZLIB);
+            builder.setTimestamp(1500000000);
+            builder.setAlias("generated.phar");
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<DataEntry>> added = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                final String name = "gen/" + (i * 37 % 100) + ".php";
+                added.add(executor.submit(new Callable<DataEntry>() {
+                    @Override
+                    public DataEntry call() throws IOException {
+                        return builder.add(name, content);
+                    }
+                }));
+            }
+            for (Future<DataEntry> entry : added) {
+                entry.get();
+            }
+            executor.shutdown();
+
+            try {
+                builder.add("gen/0.php", content);
+                fail("Names are unique");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+
+            builder.build();
+        }
+
+        // Path order and a fixed timestamp give the same bytes whatever order the entries came in
+        assertTrue(Arrays.equals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath())));
+
+        Phar p = new Phar(first);
+        assertEquals(100, p.getEntries().size());
+        assertEquals("gen/0.php", p.getEntries().get(0).getName());
+        assertEquals("gen/1.php", p.getEntries().get(1).getName());
+        assertTrue(Arrays.equals(content, IOUtils.toByteArray(p.findEntry("gen/42.php").getInputStream())));
+        assertTrue(p.verify());
+    }
+
+    public void testPharBuilderRace() throws Exception {
+        Set<Path> before = spillFiles();
+        File file = tempArchive();
+
+        // Content that does not compress, so every entry spills to a file
+        final byte[] content = new byte[SpillOutputStream.THRESHOLD * 2];
+        new Random(5).nextBytes(content);
+        final PharBuilder builder = new PharBuilder(file);
+        builder.setCompression(Compression.Type.ZLIB);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<DataEntry>> added = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // Every name is added twice, so duplicates race each other as well as the build
+            final String name = "gen/" + (i / 2) + ".bin";
+            added.add(executor.submit(new Callable<DataEntry>() {
+                @Override
+                public DataEntry call() throws IOException {
+                    try {
+                        return builder.add(name, content);
+                    } catch (IllegalStateException | IllegalArgumentException ex) {
+                        return null;
+                    }
+                }
+            }));
+            if (i == 100) {
+                builder.build();
+            }
+        }
+
+        int accepted = 0;
+        for (Future<DataEntry> entry : added) {
+            if (null != entry.get()) {
+                accepted++;
+            }
+        }
+        executor.shutdown();
+
+        // Every entry accepted before the build is in the archive, every later one was refused
+        Phar p = new Phar(file);
+        assertEquals(accepted, p.getEntries().size());
+        for (Future<DataEntry> entry : added) {
+            if (null != entry.get()) {
+                assertNotNull(p.findEntry(entry.get().getName()));
+            }
+        }
+        assertTrue(p.verify());
+
+        // Refused entries leave no spill files behind, written ones no longer need theirs
+        assertTrue(before.containsAll(spillFiles()));
+    }
+
+    /**
+     * Path for a new archive in the temporary directory, deleted on exit
+     *
+     */
+    private static File tempArchive() throws IOException {
+        File file = File.createTempFile("jphar-", ".phar");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Copy of a bundled archive in the temporary directory, deleted on exit
+     *
+     */
+    private static File tempArchive(String resource) throws IOException {
+        File file = tempArchive();
+        Files.copy(new File(resource).toPath(), file.toPath());
+        return file;
+    }
+
+    private static void deleteTree(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static byte[] readPayload(File file, DataEntry entry) throws IOException {
+        byte[] data = new byte[entry.getEntryManifest().getCompressedSize()];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(entry.getOffset());
+            raf.readFully(data);
+        }
+        return data;
+    }
+
     @Override
     public void tearDown() {
 